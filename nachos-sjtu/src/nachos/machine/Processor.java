@@ -4,6 +4,9 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -46,11 +49,39 @@ public final class Processor {
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodedPages = new Decoded[numPhysPages][];
+		blockPages = new Block[numPhysPages][];
+
+		compileBlocks = Config.getBoolean("Processor.compileBlocks", true);
+
+		debugging = Lib.test(dbgProcessor);
+		tracing = Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble);
+		tracingLines = (Lib.test(dbgDisassemble) && !debugging)
+				|| Lib.test(dbgFullDisassemble);
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", 4);
+			tlbAssociativity = Config.getInteger("Processor.tlbAssociativity",
+					tlbSize);
+			Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0
+					&& tlbSize % tlbAssociativity == 0);
+			numTLBSets = tlbSize / tlbAssociativity;
+			tlbReplacement = parseReplacement(Config.getString(
+					"Processor.tlbReplacement", "random"));
+			numASIDs = Config.getInteger("Processor.numASIDs", 64);
+			Lib.assertTrue(numASIDs > 0);
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			tlbLastUsed = new long[tlbSize];
+			tlbNextVictim = new int[numTLBSets];
+			privilege.stats.numTLBMissesBySet = new int[numTLBSets];
+
+			tlbCacheVPNs = new int[tlbCacheSize];
+			tlbCacheIndices = new int[tlbCacheSize];
+			Arrays.fill(tlbCacheVPNs, -1);
 		} else {
 			translations = null;
 		}
@@ -93,9 +124,16 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		// blocks do not print the instructions they run
+		boolean useBlocks = compileBlocks && !debugging && !tracing;
+
 		while (true) {
 			try {
-				inst.run();
+				// a block cannot start in a delay slot
+				if (useBlocks && registers[regNextPC] == registers[regPC] + 4)
+					runBlocks();
+				else
+					inst.run();
 			} catch (MipsException e) {
 				e.handle();
 			}
@@ -142,8 +180,8 @@ public final class Processor {
 	 * 
 	 * <p>
 	 * If <tt>true</tt>, this processor has a software-managed TLB; use
-	 * <tt>getTLBSize()</tt>, <tt>readTLBEntry()</tt>, and
-	 * <tt>writeTLBEntry()</tt>.
+	 * <tt>getTLBSize()</tt>, <tt>readTLBEntry()</tt>, <tt>writeTLBEntry()</tt>,
+	 * <tt>replaceTLBEntry()</tt>, and <tt>setASID()</tt>.
 	 * 
 	 * <p>
 	 * Using a method associated with the wrong address translation mechanism
@@ -191,6 +229,91 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the number of entries in each set of this processor's TLB, given
+	 * by <tt>Processor.tlbAssociativity</tt>. If this equals the TLB size,
+	 * which is the default, the TLB is fully associative.
+	 * 
+	 * @return the number of entries in each TLB set.
+	 */
+	public int getTLBAssociativity() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbAssociativity;
+	}
+
+	/**
+	 * Return the number of sets in this processor's TLB.
+	 * 
+	 * @return the number of TLB sets.
+	 */
+	public int getNumTLBSets() {
+		Lib.assertTrue(usingTLB);
+
+		return numTLBSets;
+	}
+
+	/**
+	 * Return the set that the entry for the specified virtual page must be
+	 * written to. Set <i>n</i> consists of the TLB entries numbered
+	 * <tt>n * getTLBAssociativity()</tt> through
+	 * <tt>(n + 1) * getTLBAssociativity() - 1</tt>.
+	 * 
+	 * @param vpn
+	 *            the virtual page number.
+	 * @return the TLB set for the page.
+	 */
+	public int getTLBSet(int vpn) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(vpn >= 0);
+
+		return vpn % numTLBSets;
+	}
+
+	/**
+	 * Return the number of address-space identifiers this processor supports,
+	 * given by <tt>Processor.numASIDs</tt>. Valid ASIDs are <tt>0</tt>
+	 * through <tt>getNumASIDs() - 1</tt>.
+	 * 
+	 * @return the number of ASIDs.
+	 */
+	public int getNumASIDs() {
+		Lib.assertTrue(usingTLB);
+
+		return numASIDs;
+	}
+
+	/**
+	 * Return the current address-space identifier, set by the last call to
+	 * <tt>setASID()</tt>.
+	 * 
+	 * @return the current ASID.
+	 */
+	public int getASID() {
+		Lib.assertTrue(usingTLB);
+
+		return currentASID;
+	}
+
+	/**
+	 * Set the current address-space identifier. From now on, only TLB entries
+	 * tagged with this ASID, and global entries, are used to translate
+	 * addresses. Entries tagged with other ASIDs stay in the TLB, so a context
+	 * switch does not need to flush it.
+	 * 
+	 * @param asid
+	 *            the new ASID.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+		if (asid != currentASID) {
+			currentASID = asid;
+			Arrays.fill(tlbCacheVPNs, -1);
+		}
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -209,8 +332,10 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * A valid entry must be written into the set for its virtual page, given
+	 * by <tt>getTLBSet()</tt>. Within the set, the location of an entry does
+	 * not affect anything. With the default geometry there is only one set, so
+	 * any location will do.
 	 * 
 	 * @param number
 	 *            the index into the TLB.
@@ -220,8 +345,88 @@ public final class Processor {
 	public void writeTLBEntry(int number, TranslationEntry entry) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
+		Lib.assertTrue(!entry.valid
+				|| number / tlbAssociativity == getTLBSet(entry.vpn));
 
 		translations[number] = new TranslationEntry(entry);
+		tlbLastUsed[number] = ++tlbClock;
+		Arrays.fill(tlbCacheVPNs, -1);
+	}
+
+	/**
+	 * Write the specified entry into the set for its virtual page, and return
+	 * the index it was written to. This replaces the entry for the same page
+	 * and ASID if there is one, or else an invalid entry, or else an entry
+	 * chosen by the <tt>Processor.tlbReplacement</tt> policy: <tt>random</tt>
+	 * (the default), <tt>fifo</tt>, or <tt>lru</tt>.
+	 * 
+	 * @param entry
+	 *            the new TLB entry. Must be valid.
+	 * @return the index of the TLB entry that was replaced.
+	 */
+	public int replaceTLBEntry(TranslationEntry entry) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(entry.valid);
+
+		int set = getTLBSet(entry.vpn);
+		int first = set * tlbAssociativity;
+
+		int number = findTLBEntry(entry.vpn, entry.asid);
+		for (int i = first; i < first + tlbAssociativity && number < 0; i++) {
+			if (!translations[i].valid)
+				number = i;
+		}
+
+		if (number < 0) {
+			switch (tlbReplacement) {
+			case replaceRandom:
+				number = first + Lib.random(tlbAssociativity);
+				break;
+			case replaceFIFO:
+				number = first + tlbNextVictim[set];
+				tlbNextVictim[set] = (tlbNextVictim[set] + 1)
+						% tlbAssociativity;
+				break;
+			case replaceLRU:
+				number = first;
+				for (int i = first + 1; i < first + tlbAssociativity; i++) {
+					if (tlbLastUsed[i] < tlbLastUsed[number])
+						number = i;
+				}
+				break;
+			}
+		}
+
+		writeTLBEntry(number, entry);
+		return number;
+	}
+
+	private static int parseReplacement(String name) {
+		if (name.equals("random"))
+			return replaceRandom;
+		if (name.equals("fifo"))
+			return replaceFIFO;
+		if (name.equals("lru"))
+			return replaceLRU;
+
+		Lib.assertNotReached("unknown Processor.tlbReplacement: " + name);
+		return replaceRandom;
+	}
+
+	/**
+	 * Return the index of the valid TLB entry for the specified virtual page
+	 * that is global or tagged with the specified ASID, or -1 if there is
+	 * none. Only the set the page belongs to is searched.
+	 */
+	private int findTLBEntry(int vpn, int asid) {
+		int first = (vpn % numTLBSets) * tlbAssociativity;
+		for (int i = first; i < first + tlbAssociativity; i++) {
+			TranslationEntry entry = translations[i];
+			if (entry.valid && entry.vpn == vpn
+					&& (entry.global || entry.asid == asid))
+				return i;
+		}
+		return -1;
 	}
 
 	/**
@@ -238,12 +443,35 @@ public final class Processor {
 	 * Return a reference to the physical memory array. The size of this array
 	 * is <tt>pageSize * getNumPhysPages()</tt>.
 	 * 
+	 * <p>
+	 * The processor keeps the instructions it decodes from memory. After
+	 * writing to a page of this array, call <tt>invalidateCode()</tt> on it
+	 * before the processor runs code from that page.
+	 * 
 	 * @return the main memory array.
 	 */
 	public byte[] getMemory() {
 		return mainMemory;
 	}
 
+	/**
+	 * Discard any instructions the processor has decoded from the specified
+	 * physical page, because the page has been written through the array
+	 * returned by <tt>getMemory()</tt>.
+	 * 
+	 * @param ppn
+	 *            the physical page that was written.
+	 */
+	public void invalidateCode(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		if (decodedPages[ppn] != null) {
+			decodedPages[ppn] = null;
+			blockPages[ppn] = null;
+			numCodeWrites++;
+		}
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 * 
@@ -306,7 +534,7 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (debugging)
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
 
@@ -333,19 +561,28 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, check the TLB entries found recently, and then the TLB set
+		// for the vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
-					break;
+			int slot = vpn & (tlbCacheSize - 1);
+			int number;
+			if (tlbCacheVPNs[slot] == vpn) {
+				number = tlbCacheIndices[slot];
+			} else {
+				number = findTLBEntry(vpn, currentASID);
+				if (number < 0) {
+					privilege.stats.numTLBMisses++;
+					privilege.stats.numTLBMissesBySet[vpn % numTLBSets]++;
+					Lib.debug(dbgProcessor, "\t\tTLB miss");
+					throw new MipsException(exceptionTLBMiss, vaddr);
 				}
+
+				tlbCacheVPNs[slot] = vpn;
+				tlbCacheIndices[slot] = number;
 			}
-			if (entry == null) {
-				privilege.stats.numTLBMisses++;
-				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
-			}
+
+			entry = translations[number];
+			tlbLastUsed[number] = ++tlbClock;
 		}
 
 		// check if trying to write a read-only page
@@ -368,7 +605,7 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
-		if (Lib.test(dbgProcessor))
+		if (debugging)
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
 	}
@@ -386,7 +623,7 @@ public final class Processor {
 	 *                if a translation error occurred.
 	 */
 	private int readMem(int vaddr, int size) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (debugging)
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size);
 
@@ -395,7 +632,7 @@ public final class Processor {
 		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
 				size);
 
-		if (Lib.test(dbgProcessor))
+		if (debugging)
 			System.out.println("\t\tvalue read=0x"
 					+ Lib.toHexString(value, size * 2));
 
@@ -416,14 +653,304 @@ public final class Processor {
 	 *                if a translation error occurred.
 	 */
 	private void writeMem(int vaddr, int size, int value) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (debugging)
 			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size + ", value=0x"
 					+ Lib.toHexString(value, size * 2));
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+		// the word written may be an instruction that has been decoded
+		Decoded[] page = decodedPages[paddr / pageSize];
+		if (page != null) {
+			page[(paddr % pageSize) / 4] = null;
+			blockPages[paddr / pageSize] = null;
+			numCodeWrites++;
+		}
+	}
+
+	/**
+	 * Return the decoded instruction at the specified word of a physical page,
+	 * decoding it only if it is not already in the decoded instruction cache.
+	 */
+	private Decoded decode(int ppn, int index) {
+		Decoded[] page = decodedPages[ppn];
+		if (page == null)
+			page = decodedPages[ppn] = new Decoded[pageSize / 4];
+
+		Decoded decoded = page[index];
+		if (decoded == null)
+			decoded = page[index] = new Decoded(Lib.bytesToInt(mainMemory, ppn
+					* pageSize + index * 4));
+
+		return decoded;
+	}
+
+	/**
+	 * Run compiled blocks, one after another, starting with the block at the
+	 * PC. Runs no more instructions than can complete before an interrupt
+	 * becomes due. Stops early at a delay slot that is not part of a block, or
+	 * if an instruction writes to memory holding decoded instructions, which
+	 * may be the rest of the block.
+	 * 
+	 * <p>
+	 * Charges a tick for every instruction that completes except the last,
+	 * which <tt>run()</tt> charges as it does for a single instruction. If an
+	 * instruction causes an exception, the instructions before it are charged
+	 * before the exception is handled, and <tt>run()</tt> charges that one.
+	 * 
+	 * @exception MipsException
+	 *                if an instruction caused an exception.
+	 */
+	private void runBlocks() throws MipsException {
+		int limit = privilege.interrupt.ticksUntilDue(false);
+		int codeWrites = numCodeWrites;
+		int count = 0;
+
+		try {
+			while (true) {
+				Step[] steps = fetchBlock().steps;
+				int i = 0;
+				do {
+					steps[i++].run();
+					count++;
+				} while (i < steps.length && count < limit
+						&& numCodeWrites == codeWrites);
+
+				if (count == limit || numCodeWrites != codeWrites
+						|| registers[regNextPC] != registers[regPC] + 4)
+					break;
+			}
+		} catch (MipsException e) {
+			if (count > 0)
+				privilege.interrupt.tick(false, count);
+			throw e;
+		}
+
+		if (count > 1)
+			privilege.interrupt.tick(false, count - 1);
+	}
+
+	/**
+	 * Return the block that starts at the PC, compiling it first if
+	 * necessary.
+	 */
+	private Block fetchBlock() throws MipsException {
+		int paddr = translate(registers[regPC], 4, false);
+		int ppn = paddr / pageSize, index = (paddr % pageSize) / 4;
+
+		Block[] blocks = blockPages[ppn];
+		if (blocks == null)
+			blocks = blockPages[ppn] = new Block[pageSize / 4];
+
+		Block block = blocks[index];
+		if (block == null)
+			block = blocks[index] = compileBlock(ppn, index);
+
+		return block;
+	}
+
+	/**
+	 * Compile the straight-line run of instructions starting at the specified
+	 * word of a physical page. The run ends with the delay slot of the first
+	 * branch or jump, with an instruction that always causes an exception, or
+	 * at the end of the page.
+	 */
+	private Block compileBlock(int ppn, int index) {
+		ArrayList<Step> steps = new ArrayList<Step>();
+
+		boolean delaySlot = false;
+		for (int i = index; i < pageSize / 4; i++) {
+			Decoded decoded = decode(ppn, i);
+			steps.add(compile(decoded));
+
+			if (delaySlot || decoded.operation == Mips.SYSCALL
+					|| decoded.operation == Mips.UNIMPL
+					|| decoded.operation == Mips.INVALID)
+				break;
+
+			delaySlot = Lib.test(Mips.BRANCH, decoded.flags);
+		}
+
+		return new Block(steps.toArray(new Step[steps.size()]));
+	}
+
+	/**
+	 * Compile a decoded instruction into a step specialised to its operation
+	 * and operands. Each step has the same effect as running the instruction
+	 * through an <tt>Instruction</tt>, including the delayed load of the
+	 * previous instruction. Instructions that are rare in compiled code, or
+	 * that may overflow, are run through an <tt>Instruction</tt>.
+	 */
+	private Step compile(final Decoded d) {
+		final int rs = d.rs, rt = d.rt, sh = d.sh, imm = d.imm;
+		final int dstReg = d.dstReg, size = d.size, offset = d.offset;
+
+		boolean srcImm = Lib.test(Mips.SRC2IMM, d.flags);
+		boolean unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+		boolean shiftImm = Lib.test(Mips.SRC1SH, d.flags);
+
+		if (Lib.test(Mips.OVERFLOW, d.flags))
+			return () -> stepInstruction.run(d);
+
+		switch (d.operation) {
+		case Mips.ADD:
+			if (srcImm)
+				return () -> complete(dstReg, registers[rs] + imm);
+			return () -> complete(dstReg, registers[rs] + registers[rt]);
+		case Mips.SUB:
+			return () -> complete(dstReg, registers[rs] - registers[rt]);
+
+		case Mips.SLL:
+			if (shiftImm)
+				return () -> complete(dstReg, registers[rt] << sh);
+			return () -> complete(dstReg, registers[rt] << registers[rs]);
+		case Mips.SRA:
+			if (shiftImm)
+				return () -> complete(dstReg, registers[rt] >> sh);
+			return () -> complete(dstReg, registers[rt] >> registers[rs]);
+		case Mips.SRL:
+			// as in execute(), the source is sign-extended before shifting
+			if (shiftImm)
+				return () -> complete(dstReg,
+						(int) ((long) registers[rt] >>> sh));
+			return () -> complete(dstReg,
+					(int) ((long) registers[rt] >>> (registers[rs] & 0x1F)));
+
+		case Mips.SLT:
+			if (srcImm && unsigned)
+				return () -> complete(dstReg,
+						(registers[rs] & 0xFFFFFFFFL) < imm ? 1 : 0);
+			if (srcImm)
+				return () -> complete(dstReg, registers[rs] < imm ? 1 : 0);
+			if (unsigned)
+				return () -> {
+					long src1 = registers[rs] & 0xFFFFFFFFL;
+					long src2 = registers[rt] & 0xFFFFFFFFL;
+					complete(dstReg, src1 < src2 ? 1 : 0);
+				};
+			return () -> complete(dstReg,
+					registers[rs] < registers[rt] ? 1 : 0);
+
+		case Mips.AND:
+			if (srcImm)
+				return () -> complete(dstReg, registers[rs] & imm);
+			return () -> complete(dstReg, registers[rs] & registers[rt]);
+		case Mips.OR:
+			if (srcImm)
+				return () -> complete(dstReg, registers[rs] | imm);
+			return () -> complete(dstReg, registers[rs] | registers[rt]);
+		case Mips.XOR:
+			if (srcImm)
+				return () -> complete(dstReg, registers[rs] ^ imm);
+			return () -> complete(dstReg, registers[rs] ^ registers[rt]);
+		case Mips.NOR:
+			return () -> complete(dstReg, ~(registers[rs] | registers[rt]));
+		case Mips.LUI:
+			return () -> complete(dstReg, imm << 16);
+
+		case Mips.MFLO:
+			return () -> complete(dstReg, registers[regLo]);
+		case Mips.MFHI:
+			return () -> complete(dstReg, registers[regHi]);
+
+		case Mips.LOAD:
+			if (unsigned || size == 4)
+				return () -> {
+					int value = readMem(registers[rs] + imm, size);
+					delayedLoad(dstReg, value, 0xFFFFFFFF);
+					advancePC(registers[regNextPC] + 4);
+				};
+			return () -> {
+				int value = readMem(registers[rs] + imm, size);
+				delayedLoad(dstReg, Lib.extend(value, 0, size * 8), 0xFFFFFFFF);
+				advancePC(registers[regNextPC] + 4);
+			};
+		case Mips.STORE:
+			return () -> {
+				writeMem(registers[rs] + imm, size, registers[rt]);
+				complete(0, 0);
+			};
+
+		case Mips.BEQ:
+			if (d.flags == Mips.BRANCH)
+				return () -> branch(registers[rs] == registers[rt], offset);
+			break;
+		case Mips.BNE:
+			if (d.flags == Mips.BRANCH)
+				return () -> branch(registers[rs] != registers[rt], offset);
+			break;
+		case Mips.BLEZ:
+			if (d.flags == Mips.BRANCH)
+				return () -> branch(registers[rs] <= 0, offset);
+			break;
+		case Mips.BGTZ:
+			if (d.flags == Mips.BRANCH)
+				return () -> branch(registers[rs] > 0, offset);
+			break;
+		case Mips.BLTZ:
+			if (d.flags == Mips.BRANCH)
+				return () -> branch(registers[rs] < 0, offset);
+			break;
+		case Mips.BGEZ:
+			if (d.flags == Mips.BRANCH)
+				return () -> branch(registers[rs] >= 0, offset);
+			break;
+
+		case Mips.JUMP:
+			// j and jal, or jr and jalr
+			final int link = Lib.test(Mips.LINK, d.flags) ? dstReg : 0;
+			if (d.format == Mips.JFMT)
+				return () -> jump((registers[regNextPC] & 0xF0000000) | offset,
+						link);
+			return () -> jump(registers[rs], link);
+		}
+
+		return () -> stepInstruction.run(d);
+	}
+
+	/**
+	 * Finish a compiled instruction that does not branch: complete the delayed
+	 * load in progress, write <i>value</i> to register <i>dstReg</i> unless it
+	 * is register 0, and advance the PC.
+	 */
+	private void complete(int dstReg, int value) {
+		finishLoad();
+
+		if (dstReg != 0)
+			registers[dstReg] = value;
+
+		advancePC(registers[regNextPC] + 4);
+	}
+
+	/**
+	 * Finish a compiled branch, which moves to <i>offset</i> bytes past its
+	 * delay slot if <i>taken</i>.
+	 */
+	private void branch(boolean taken, int offset) {
+		int delaySlot = registers[regNextPC];
+
+		finishLoad();
+
+		advancePC(taken ? delaySlot + offset : delaySlot + 4);
+	}
+
+	/**
+	 * Finish a compiled jump to <i>target</i>, saving the address after its
+	 * delay slot in register <i>link</i> unless it is register 0.
+	 */
+	private void jump(int target, int link) {
+		int returnAddress = registers[regNextPC] + 4;
+
+		finishLoad();
+
+		if (link != 0)
+			registers[link] = returnAddress;
+
+		advancePC(target);
 	}
 
 	/**
@@ -554,12 +1081,42 @@ public final class Processor {
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
 	/** Number of TLB entries. */
-	private int tlbSize = 4;
+	private int tlbSize;
+	/** Number of TLB entries in each set. */
+	private int tlbAssociativity;
+	/** Number of TLB sets. */
+	private int numTLBSets;
+	/** The policy <tt>replaceTLBEntry()</tt> uses to choose a victim. */
+	private int tlbReplacement;
+	private static final int replaceRandom = 0, replaceFIFO = 1,
+			replaceLRU = 2;
+	/** When each TLB entry was last written or used, by <tt>tlbClock</tt>. */
+	private long[] tlbLastUsed;
+	/** A counter that advances on every TLB access, for LRU replacement. */
+	private long tlbClock = 0;
+	/** The next entry of each set to replace, for FIFO replacement. */
+	private int[] tlbNextVictim;
+	/** Number of address-space identifiers. */
+	private int numASIDs;
+	/** The ASID that non-global TLB entries must be tagged with to match. */
+	private int currentASID = 0;
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
 	 */
 	private TranslationEntry[] translations;
+	/**
+	 * The virtual page numbers of TLB entries found recently, each in the slot
+	 * given by its low bits, or -1. Since the TLB holds copies of the entries
+	 * written to it, a cached entry stays correct until the next
+	 * <tt>writeTLBEntry()</tt> or change of ASID. A page table is read on every
+	 * access instead, because the kernel may change its entries at any time.
+	 */
+	private int[] tlbCacheVPNs;
+	/** The TLB indices for the page numbers in <tt>tlbCacheVPNs</tt>. */
+	private int[] tlbCacheIndices;
+	/** The number of slots in the TLB cache. Must be a power of 2. */
+	private static final int tlbCacheSize = 8;
 
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
@@ -569,10 +1126,43 @@ public final class Processor {
 	private int numPhysPages;
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
+	/**
+	 * Instructions decoded from main memory, by physical page and then by word
+	 * within the page. A page is <tt>null</tt> until an instruction is fetched
+	 * from it, and a word is <tt>null</tt> until it is fetched or after it is
+	 * written.
+	 */
+	private Decoded[][] decodedPages;
+	/**
+	 * Compiled blocks, by physical page and then by the word each starts at.
+	 * Writing to a page that holds decoded instructions discards all of its
+	 * blocks.
+	 */
+	private Block[][] blockPages;
+	/** The number of writes to memory holding decoded instructions. */
+	private int numCodeWrites = 0;
+	/** <tt>true</tt> if straight-line code should be compiled into blocks. */
+	private boolean compileBlocks;
+	/** Runs the compiled instructions that have no specialised step. */
+	private Instruction stepInstruction = new Instruction();
 
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
+	/**
+	 * <tt>true</tt> if processor debugging was enabled when this processor was
+	 * created. The debug flags are read only once, since they would otherwise
+	 * be tested on every memory access.
+	 */
+	private boolean debugging;
+	/** <tt>true</tt> if instructions are disassembled as they run. */
+	private boolean tracing;
+	/**
+	 * <tt>true</tt> if each instruction disassembled is printed on a line of
+	 * its own, starting with its PC.
+	 */
+	private boolean tracingLines;
+
 	private static final char dbgProcessor = 'p';
 	private static final char dbgDisassemble = 'm';
 	private static final char dbgFullDisassemble = 'M';
@@ -604,7 +1194,7 @@ public final class Processor {
 			if (hasBadVAddr)
 				writeRegister(regBadVAddr, badVAddr);
 
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			if (tracing)
 				System.out.println("exception: " + exceptionNames[cause]);
 
 			finishLoad();
@@ -626,7 +1216,18 @@ public final class Processor {
 		public void run() throws MipsException {
 			// hopefully this looks familiar to 152 students?
 			fetch();
-			decode();
+			readOperands();
+			execute();
+			writeBack();
+		}
+
+		/**
+		 * Run the specified instruction, which must be the one at the PC,
+		 * without fetching it.
+		 */
+		public void run(Decoded decoded) throws MipsException {
+			setDecoded(decoded);
+			readOperands();
 			execute();
 			writeBack();
 		}
@@ -635,90 +1236,67 @@ public final class Processor {
 			return Lib.test(flag, flags);
 		}
 
+		/**
+		 * Fetch the decoded instruction at the PC, decoding it only if it is
+		 * not already in the decoded instruction cache.
+		 */
 		private void fetch() throws MipsException {
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
+			if (tracingLines)
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
-		}
+			// print what readMem() would
+			if (debugging)
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
 
-		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			int paddr = translate(registers[regPC], 4, false);
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			if (debugging)
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(
+								Lib.bytesToInt(mainMemory, paddr), 8));
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+			setDecoded(decode(paddr / pageSize, (paddr % pageSize) / 4));
+		}
+
+		private void setDecoded(Decoded decoded) {
+			this.decoded = decoded;
+			operation = decoded.operation;
+			flags = decoded.flags;
+			imm = decoded.imm;
+			size = decoded.size;
+			dstReg = decoded.dstReg;
+		}
+
+		/**
+		 * Read the operands of the fetched instruction from the registers.
+		 */
+		private void readOperands() {
+			int rs = decoded.rs;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
-			if (format == Mips.RFMT)
+			if (decoded.format == Mips.RFMT)
 				jtarget = registers[rs];
-			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
-			else if (format == Mips.JFMT)
-				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
+			else if (decoded.format == Mips.IFMT)
+				jtarget = registers[regNextPC] + decoded.offset;
+			else if (decoded.format == Mips.JFMT)
+				jtarget = (registers[regNextPC] & 0xF0000000) | decoded.offset;
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
 			// get src1
 			if (test(Mips.SRC1SH))
-				src1 = sh;
+				src1 = decoded.sh;
 			else
 				src1 = registers[rs];
 
@@ -726,18 +1304,22 @@ public final class Processor {
 			if (test(Mips.SRC2IMM))
 				src2 = imm;
 			else
-				src2 = registers[rt];
+				src2 = registers[decoded.rt];
 
 			if (test(Mips.UNSIGNED)) {
 				src1 &= 0xFFFFFFFFL;
 				src2 &= 0xFFFFFFFFL;
 			}
 
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			if (tracing)
 				print();
 		}
 
 		private void print() {
+			int op = decoded.op, rs = decoded.rs, rt = decoded.rt;
+			int rd = decoded.rd, sh = decoded.sh, func = decoded.func;
+			String name = decoded.name;
+
 			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
 					&& !Lib.test(dbgFullDisassemble))
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
@@ -1052,7 +1634,8 @@ public final class Processor {
 			if (test(Mips.DST) && dstReg != 0)
 				registers[dstReg] = (int) dst;
 
-			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+			if (tracing && (test(Mips.DST) || test(Mips.DELAYEDLOAD))
+					&& dstReg != 0) {
 				if (Lib.test(dbgFullDisassemble)) {
 					System.out.print("#0x" + Lib.toHexString((int) dst));
 					if (test(Mips.DELAYEDLOAD))
@@ -1066,23 +1649,121 @@ public final class Processor {
 
 			advancePC(nextPC);
 
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
+			if (tracingLines)
 				System.out.print("\n");
 		}
 
-		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
-		int operation, format, flags;
-		String name;
+		/** The decoded instruction being executed. */
+		Decoded decoded;
+		// copied from decoded, since execute() and writeBack() use them often
+		int operation, flags, imm, size, dstReg;
 
-		int size;
-		int addr, nextPC, jtarget, dstReg;
+		// state used to execute a single instruction
+		int addr, nextPC, jtarget;
 		long src1, src2, dst;
 		int mask;
 		boolean branch;
 	}
 
+	/**
+	 * A compiled instruction, specialised to its operation and operands.
+	 */
+	private interface Step {
+		void run() throws MipsException;
+	}
+
+	/**
+	 * A straight-line run of compiled instructions, ending with the delay slot
+	 * of a branch or jump, if any. Only the first instruction is fetched;
+	 * since a block does not cross a page, the others are on the same page.
+	 */
+	private static class Block {
+		Block(Step[] steps) {
+			this.steps = steps;
+		}
+
+		final Step[] steps;
+	}
+
+	/**
+	 * An instruction word decoded into the parts that do not depend on the
+	 * registers. Decoding an instruction only once per physical address, and
+	 * keeping the result until the word is written, saves extracting its fields
+	 * and looking it up in the <tt>Mips</tt> tables every time it runs.
+	 */
+	private static class Decoded {
+		Decoded(int value) {
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			int target = Lib.extract(value, 0, 26);
+			int imm = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// get the constant part of jtarget
+			if (format == Mips.IFMT)
+				offset = imm << 2;
+			else if (format == Mips.JFMT)
+				offset = target << 2;
+			else
+				offset = 0;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags)) {
+				imm &= 0xFFFF;
+			}
+			this.imm = imm;
+		}
+
+		final int op, rs, rt, rd, sh, func, imm;
+		final int operation, format, flags;
+		final String name;
+
+		final int size, dstReg;
+		/** The branch offset or jump target, shifted into place. */
+		final int offset;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
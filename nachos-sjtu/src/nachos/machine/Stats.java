@@ -2,6 +2,8 @@
 
 package nachos.machine;
 
+import java.util.Arrays;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -17,15 +19,20 @@ public final class Stats {
 	 */
 	public void print() {
 		System.out.println("Ticks: total " + totalTicks + ", kernel "
-				+ kernelTicks + ", user " + userTicks);
+				+ kernelTicks + ", user " + userTicks + ", idle " + idleTicks);
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
 				+ numDiskWrites);
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
 				+ ", TLB misses " + numTLBMisses);
+		if (numTLBMissesBySet != null && numTLBMissesBySet.length > 1)
+			System.out.println("TLB misses by set: "
+					+ Arrays.toString(numTLBMissesBySet));
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+		System.out.println("Interrupts: timer " + numTimerInterrupts
+				+ ", checks " + numInterruptChecks);
 	}
 
 	/**
@@ -40,6 +47,11 @@ public final class Stats {
 	 * The total amount of simulated time that Nachos has spent in user mode.
 	 */
 	public long userTicks = 0;
+	/**
+	 * The total amount of simulated time that Nachos skipped because no
+	 * thread was ready to run.
+	 */
+	public long idleTicks = 0;
 
 	/** The total number of sectors Nachos has read from the simulated disk. */
 	public int numDiskReads = 0;
@@ -53,10 +65,19 @@ public final class Stats {
 	public int numPageFaults = 0;
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
+	/**
+	 * The number of TLB misses that have occurred in each TLB set, or
+	 * <tt>null</tt> if the processor has no TLB.
+	 */
+	public int[] numTLBMissesBySet = null;
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 	/** The total number of packets Nachos has received from the network. */
 	public int numPacketsReceived = 0;
+	/** The total number of timer interrupts delivered to the kernel. */
+	public int numTimerInterrupts = 0;
+	/** The total number of times Nachos checked for due interrupts. */
+	public long numInterruptChecks = 0;
 
 	/**
 	 * The amount to advance simulated time after each user instructions is
@@ -2,7 +2,9 @@
 
 package nachos.machine;
 
+import java.lang.reflect.Method;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 
 import nachos.security.Privilege;
 import nachos.threads.KThread;
@@ -13,6 +15,14 @@ import nachos.threads.KThread;
  * object.
  * 
  * <p>
+ * A context switch hands the processor over by unparking the next JVM thread
+ * and parking the current one. If <tt>TCB.virtualThreads</tt> is set, the JVM
+ * threads behind TCBs are virtual threads. Virtual threads are cheap enough
+ * that the limit on the number of TCBs, <tt>TCB.maxThreads</tt>, can be
+ * raised to tens of thousands. They require a JVM that supports them; on
+ * older JVMs platform threads are used.
+ * 
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -39,6 +49,44 @@ public final class TCB {
 	static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		virtualThreads = Config.getBoolean("TCB.virtualThreads", false);
+		if (virtualThreads && !findVirtualThreadBuilder()) {
+			System.out.print(" (no virtual threads)");
+			virtualThreads = false;
+		}
+
+		maxThreads = Config.getInteger("TCB.maxThreads",
+				virtualThreads ? 65536 : 250);
+		Lib.assertTrue(maxThreads > 0);
+	}
+
+	/**
+	 * Look up <tt>Thread.ofVirtual()</tt> by reflection, so that Nachos still
+	 * builds and runs on JVMs without virtual threads.
+	 * 
+	 * @return <tt>true</tt> if virtual threads are available.
+	 */
+	private static boolean findVirtualThreadBuilder() {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			virtualThreadBuilder = Thread.class.getMethod("ofVirtual").invoke(
+					null);
+			newVirtualThread = builderClass.getMethod("unstarted",
+					Runnable.class);
+			return true;
+		} catch (ReflectiveOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Return <tt>true</tt> if TCBs are backed by virtual threads.
+	 * 
+	 * @return <tt>true</tt> if TCBs are backed by virtual threads.
+	 */
+	public static boolean usesVirtualThreads() {
+		return virtualThreads;
 	}
 
 	/**
@@ -97,7 +145,8 @@ public final class TCB {
 			tcbTarget = this::threadroot;
 
 			privilege.doPrivileged(() -> {
-				javaThread = new Thread(tcbTarget);
+				javaThread = virtualThreads ? newVirtualThread(tcbTarget)
+						: new Thread(tcbTarget);
 			});
 
 			/*
@@ -279,32 +328,41 @@ public final class TCB {
 		currentTCB = this;
 	}
 
+	private static Thread newVirtualThread(Runnable target) {
+		try {
+			return (Thread) newVirtualThread.invoke(virtualThreadBuilder, target);
+		} catch (ReflectiveOperationException e) {
+			throw new Error(e);
+		}
+	}
+
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
-	 * process of starting and destroying TCBs, as well as in context switching
-	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * Waits until the <tt>running</tt> flag of this TCB is set to
+	 * <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB needs
+	 * to go to wait for its turn to run. This includes the ping-pong process of
+	 * starting and destroying TCBs, as well as in context switching from this
+	 * TCB to another. We don't rely on <tt>currentTCB</tt>, since it is updated
+	 * by <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * The Java thread parks rather than waiting on a monitor, so a context
+	 * switch takes no locks. <tt>park()</tt> may return spuriously, and it
+	 * returns at once if <tt>interrupt()</tt> already unparked this thread,
+	 * so the flag is checked again every time.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			} catch (InterruptedException ignored) {
-			}
-		}
+	private void waitForInterrupt() {
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
+	 * and unparking its Java thread. Used in the ping-pong process of starting
+	 * and destroying TCBs, as well as in context switching to this TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -332,7 +390,14 @@ public final class TCB {
 	 * The maximum number of started, non-destroyed TCB's that can be in
 	 * existence.
 	 */
-	private static final int maxThreads = 250;
+	private static int maxThreads = 250;
+
+	/** <tt>true</tt> if TCBs are backed by virtual threads. */
+	private static boolean virtualThreads = false;
+	/** The <tt>Thread.Builder</tt> for virtual threads, if used. */
+	private static Object virtualThreadBuilder = null;
+	/** <tt>Thread.Builder.unstarted(Runnable)</tt>, if used. */
+	private static Method newVirtualThread = null;
 
 	/**
 	 * A reference to the currently running TCB. It is initialized to
@@ -388,9 +453,10 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. It is volatile because it is the only thing that passes control
+	 * from one Java thread to the next.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
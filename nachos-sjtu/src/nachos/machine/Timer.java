@@ -13,6 +13,12 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is a
  * small degree of randomness here, so interrupts do not occur exactly every 500
  * ticks.
+ * 
+ * <p>
+ * If <tt>Timer.tickless</tt> is set, the timer does not interrupt periodically.
+ * Instead, the kernel asks for each interrupt with
+ * <tt>requestInterrupt()</tt>, at the earliest time it has something to do,
+ * such as waking a sleeping thread or preempting the current thread.
  */
 public final class Timer {
 	/**
@@ -39,7 +45,43 @@ public final class Timer {
 			}
 		};
 
-		scheduleInterrupt();
+		tickless = Config.getBoolean("Timer.tickless", false);
+		if (!tickless)
+			scheduleInterrupt();
+	}
+
+	/**
+	 * Test whether this timer only interrupts when asked to.
+	 * 
+	 * @return <tt>true</tt> if this timer is tickless.
+	 */
+	public boolean isTickless() {
+		return tickless;
+	}
+
+	/**
+	 * Make sure a timer interrupt occurs no later than the specified time.
+	 * Does nothing unless this timer is tickless, or if an interrupt is
+	 * already due by then.
+	 * 
+	 * @param time
+	 *            the latest time at which the timer should interrupt.
+	 */
+	public void requestInterrupt(long time) {
+		if (!tickless)
+			return;
+
+		time = Math.max(time, getTime() + 1);
+		if (time >= nextInterrupt)
+			return;
+
+		/*
+		 * An interrupt scheduled earlier for a later time stays pending, and
+		 * is ignored by timerInterrupt() if it comes before the next requested
+		 * one.
+		 */
+		nextInterrupt = time;
+		privilege.interrupt.schedule(time - getTime(), "timer", timerInterrupt);
 	}
 
 	/**
@@ -63,9 +105,17 @@ public final class Timer {
 	}
 
 	private void timerInterrupt() {
-		scheduleInterrupt();
+		if (tickless) {
+			if (getTime() < nextInterrupt)
+				return;
+			nextInterrupt = Long.MAX_VALUE;
+		} else {
+			scheduleInterrupt();
+		}
 		scheduleAutoGraderInterrupt();
 
+		privilege.stats.numTimerInterrupts++;
+
 		lastTimerInterrupt = getTime();
 
 		if (handler != null)
@@ -83,6 +133,10 @@ public final class Timer {
 		privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
 	}
 
+	private boolean tickless;
+	/** In tickless mode, the time of the next requested interrupt. */
+	private long nextInterrupt = Long.MAX_VALUE;
+
 	private long lastTimerInterrupt;
 	private Runnable timerInterrupt;
 	private Runnable autoGraderInterrupt;
@@ -53,6 +53,8 @@ public final class TranslationEntry {
 		readOnly = entry.readOnly;
 		used = entry.used;
 		dirty = entry.dirty;
+		asid = entry.asid;
+		global = entry.global;
 	}
 
 	/** The virtual page number. */
@@ -83,4 +85,17 @@ public final class TranslationEntry {
 	 * user program.
 	 */
 	public boolean dirty;
+
+	/**
+	 * The address-space identifier of the process this entry belongs to. A
+	 * TLB entry only matches when this equals the processor's current ASID,
+	 * unless <tt>global</tt> is set. Ignored in page tables.
+	 */
+	public int asid = 0;
+
+	/**
+	 * If this flag is <tt>true</tt>, a TLB entry matches whatever the current
+	 * ASID is. Ignored in page tables.
+	 */
+	public boolean global = false;
 }
@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.List;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because of
@@ -13,23 +15,30 @@ import nachos.threads.*;
  * The post office uses a "postal worker" thread to wait for messages to arrive
  * from the network and to place them in the appropriate queues. This cannot be
  * done in the receive interrupt handler because each queue (implemented with a
- * <tt>SynchList</tt>) is protected by a lock.
+ * <tt>BoundedSynchList</tt>) is protected by a lock.
+ * 
+ * <p>
+ * Each queue holds up to <tt>PostOffice.mailboxCapacity</tt> messages. A
+ * message that arrives for a full queue is dropped, as the network may drop
+ * messages anyway, so that one port that is not being read cannot hold up the
+ * delivery of messages to the others.
  */
 @SuppressWarnings("unchecked")
 public class PostOffice {
 	/**
-	 * Allocate a new post office, using an array of <tt>SynchList</tt>s.
-	 * Register the interrupt handlers with the network hardware and start the
-	 * "postal worker" thread.
+	 * Allocate a new post office, using an array of
+	 * <tt>BoundedSynchList</tt>s. Register the interrupt handlers with the
+	 * network hardware and start the "postal worker" thread.
 	 */
 	public PostOffice() {
 		messageReceived = new Semaphore(0);
 		messageSent = new Semaphore(0);
 		sendLock = new Lock();
 
-		queues = new SynchList[MailMessage.portLimit];
+		int capacity = Config.getInteger("PostOffice.mailboxCapacity", 64);
+		queues = new BoundedSynchList[MailMessage.portLimit];
 		for (int i = 0; i < queues.length; i++)
-			queues[i] = new SynchList();
+			queues[i] = new BoundedSynchList<MailMessage>(capacity);
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -65,7 +74,7 @@ public class PostOffice {
 
 		Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-		MailMessage mail = (MailMessage) queues[port].removeFirst();
+		MailMessage mail = queues[port].removeFirst();
 
 		if (Lib.test(dbgNet))
 			System.out.println("got mail on port " + port + ": " + mail);
@@ -73,6 +82,25 @@ public class PostOffice {
 		return mail;
 	}
 
+	/**
+	 * Retrieve every message waiting on the specified port, up to <i>max</i>
+	 * messages, waiting for the first one if necessary.
+	 * 
+	 * @param port
+	 *            the port on which to wait for messages.
+	 * @param mail
+	 *            the list to add the messages received to.
+	 * @param max
+	 *            the maximum number of messages to receive.
+	 * @return the number of messages received.
+	 */
+	public int receive(int port, List<MailMessage> mail, int max) {
+		Lib.assertTrue(port >= 0 && port < queues.length && max > 0);
+
+		mail.add(queues[port].removeFirst());
+		return 1 + queues[port].drainTo(mail, max - 1);
+	}
+
 	/**
 	 * Wait for incoming messages, and then put them in the correct mailbox.
 	 */
@@ -95,7 +123,8 @@ public class PostOffice {
 						+ ": " + mail);
 
 			// atomically add message to the mailbox and wake a waiting thread
-			queues[mail.dstPort].add(mail);
+			if (!queues[mail.dstPort].offer(mail))
+				Lib.debug(dbgNet, "mailbox full, dropping mail");
 		}
 	}
 
@@ -131,7 +160,7 @@ public class PostOffice {
 		messageSent.V();
 	}
 
-	private SynchList[] queues;
+	private BoundedSynchList<MailMessage>[] queues;
 	private Semaphore messageReceived; // V'd when a message can be dequeued
 	private Semaphore messageSent; // V'd when a message can be queued
 	private Lock sendLock;
@@ -164,6 +164,34 @@ public abstract class Privilege {
 		 *            user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by several ticks at once. Same as
+		 * calling <tt>tick(inKernelMode)</tt> <i>count</i> times, provided
+		 * that <i>count</i> is no more than <tt>ticksUntilDue()</tt>, so that
+		 * no interrupt can become due before the last of them.
+		 * 
+		 * @param inKernelMode
+		 *            <tt>true</tt> if the current thread is running kernel
+		 *            code, <tt>false</tt> if the current thread is running MIPS
+		 *            user code.
+		 * @param count
+		 *            the number of ticks.
+		 */
+		public void tick(boolean inKernelMode, int count);
+
+		/**
+		 * Return the number of calls to <tt>tick(inKernelMode)</tt> that can
+		 * be made before one of them invokes an interrupt handler, counting
+		 * that one.
+		 * 
+		 * @param inKernelMode
+		 *            <tt>true</tt> to count kernel ticks, <tt>false</tt> to
+		 *            count user ticks.
+		 * @return the number of ticks, or <tt>Integer.MAX_VALUE</tt> if no
+		 *         interrupt is pending.
+		 */
+		public int ticksUntilDue(boolean inKernelMode);
 	}
 
 	/**
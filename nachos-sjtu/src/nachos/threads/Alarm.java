@@ -2,11 +2,23 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.PriorityQueue;
+import java.util.Arrays;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ * 
+ * <p>
+ * An alarm also runs <i>timeouts</i>: handlers that are called from the timer
+ * interrupt handler at the first timer interrupt at or after a given time,
+ * unless they are canceled first. Timeouts let a thread wait for something
+ * else with a bound on how long it waits, as in <tt>Semaphore.P(long)</tt>.
+ * 
+ * <p>
+ * If the timer is tickless, the alarm asks it to interrupt at the earliest
+ * pending timeout, and, while another thread is waiting to run, within
+ * <tt>Stats.TimerTicks</tt> ticks so that the current thread is preempted.
+ * While only one thread can run, no timer interrupts occur at all.
  */
 public class Alarm {
 	/**
@@ -22,23 +34,21 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Runs every timeout
+	 * that is due, then causes the current thread to yield, forcing a context
+	 * switch if there is another thread that should be run.
 	 */
 	public void timerInterrupt() {
 		boolean status = Machine.interrupt().disable();
-		while (!threadQueue.isEmpty()) {
-			WaitThread waitThread = threadQueue.peek();
-			assert waitThread != null;
-			if (waitThread.getWakeTime() <= Machine.timer().getTime()) {
-				waitThread.getKThread().ready();
-				threadQueue.poll();
-				continue;
-			}
-			break;
+		long time = Machine.timer().getTime();
+		expire(time);
+		if (Machine.timer().isTickless()) {
+			Machine.timer().requestInterrupt(nextTime());
+			if (KThread.hasReadyThreads())
+				Machine.timer().requestInterrupt(time + Stats.TimerTicks);
 		}
 		Machine.interrupt().restore(status);
+		KThread.balanceLoad();
 		KThread.yield();
 	}
 
@@ -50,41 +60,425 @@ public class Alarm {
 	 * <p>
 	 * <blockquote> (current time) >= (WaitUntil called time)+(x) </blockquote>
 	 * 
+	 * <p>
+	 * The timeout that wakes the thread is kept in
+	 * <tt>KThread.alarmState</tt> and reused, so sleeping allocates nothing
+	 * after the first time. <tt>sleepOn()</tt> reuses the same timeout.
+	 * 
 	 * @param x
 	 *            the minimum number of clock ticks to wait.
 	 * 
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
 		boolean status = Machine.interrupt().disable();
-		threadQueue.add(new WaitThread(KThread.currentThread(), Machine.timer().getTime() + x));
+		Sleeper sleeper = sleeper(KThread.currentThread());
+		set(sleeper.timeout, Machine.timer().getTime() + x);
 		KThread.sleep();
 		Machine.interrupt().restore(status);
 	}
 
-	private class WaitThread implements Comparable<WaitThread> {
-		private KThread kThread;
-		private long wakeTime;
+	/**
+	 * Call the specified handler at the first timer interrupt at or after the
+	 * specified time. The handler runs with interrupts disabled, on the stack
+	 * of whichever thread was interrupted, so it must not block.
+	 * 
+	 * @param time
+	 *            the absolute time at which to run the handler.
+	 * @param handler
+	 *            the handler to run.
+	 * @return a handle that can cancel the timeout.
+	 */
+	public Timeout schedule(long time, Runnable handler) {
+		Timeout timeout = new Timeout(handler);
+		set(timeout, time);
+		return timeout;
+	}
+
+	/**
+	 * Set a timeout that is not pending to run at the specified time. This
+	 * lets a caller reuse a timeout instead of allocating a new one.
+	 * 
+	 * @param timeout
+	 *            the timeout to set.
+	 * @param time
+	 *            the absolute time at which to run its handler.
+	 */
+	public void set(Timeout timeout, long time) {
+		boolean status = Machine.interrupt().disable();
+
+		Lib.assertTrue(timeout.alarm == null);
+		timeout.alarm = this;
+		timeout.time = time;
+		timeout.order = numTimeouts++;
+		add(timeout);
+		Machine.timer().requestInterrupt(time);
 
-		public WaitThread(KThread kThread, long wakeTime) {
-			this.kThread = kThread;
-			this.wakeTime = wakeTime;
+		Machine.interrupt().restore(status);
+	}
+
+	/**
+	 * Put the current thread to sleep until another thread takes it off
+	 * <tt>waitQueue</tt> and wakes it, or until the specified time, whichever
+	 * comes first. The current thread must already be waiting on
+	 * <tt>waitQueue</tt>, and interrupts must be disabled. Like
+	 * <tt>waitUntil()</tt>, this reuses the current thread's timeout.
+	 * 
+	 * @param waitQueue
+	 *            the queue the current thread is waiting on.
+	 * @param time
+	 *            the absolute time at which to give up waiting.
+	 * @return <tt>true</tt> if another thread woke the current thread, or
+	 *         <tt>false</tt> if the time came first, in which case the current
+	 *         thread has been removed from <tt>waitQueue</tt>.
+	 */
+	public boolean sleepOn(final ThreadQueue waitQueue, long time) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Sleeper sleeper = sleeper(KThread.currentThread());
+		sleeper.waitQueue = waitQueue;
+		sleeper.expired = false;
+		set(sleeper.timeout, time);
+
+		KThread.sleep();
+
+		sleeper.timeout.cancel();
+		sleeper.waitQueue = null;
+		return !sleeper.expired;
+	}
+
+	/**
+	 * Return the sleeper kept in the <tt>alarmState</tt> of the specified
+	 * thread, creating it the first time.
+	 */
+	private static Sleeper sleeper(KThread thread) {
+		if (thread.alarmState == null)
+			thread.alarmState = new Sleeper(thread);
+		return (Sleeper) thread.alarmState;
+	}
+
+	/**
+	 * Start tracking a timeout that has just been set. Called with interrupts
+	 * disabled.
+	 * 
+	 * @param timeout
+	 *            the timeout.
+	 */
+	protected void add(Timeout timeout) {
+		Lib.assertTrue(timeout.slot < 0);
+		if (size == heap.length)
+			heap = Arrays.copyOf(heap, size * 2);
+		heap[size] = timeout;
+		siftUp(size++);
+	}
+
+	/**
+	 * Stop tracking a timeout that has been canceled. Called with interrupts
+	 * disabled.
+	 * 
+	 * @param timeout
+	 *            the timeout.
+	 */
+	protected void remove(Timeout timeout) {
+		int i = timeout.slot;
+		Lib.assertTrue(i >= 0 && i < size && heap[i] == timeout);
+		timeout.slot = -1;
+		Timeout last = heap[--size];
+		heap[size] = null;
+		if (i < size) {
+			heap[i] = last;
+			if (i > 0 && isEarlier(last, heap[(i - 1) / 2]))
+				siftUp(i);
+			else
+				siftDown(i);
 		}
+	}
 
-		public KThread getKThread() {
-			return kThread;
+	/**
+	 * Run every timeout that is due at or before the specified time, using
+	 * <tt>fire()</tt>. Called with interrupts disabled.
+	 * 
+	 * @param time
+	 *            the current time.
+	 */
+	protected void expire(long time) {
+		while (size > 0 && heap[0].time <= time) {
+			Timeout timeout = heap[0];
+			remove(timeout);
+			fire(timeout);
 		}
+	}
+
+	/**
+	 * Return the earliest time at which <tt>expire()</tt> may have a timeout
+	 * to run. Called with interrupts disabled.
+	 * 
+	 * @return the time of the earliest pending timeout, or
+	 *         <tt>Long.MAX_VALUE</tt> if there is none.
+	 */
+	protected long nextTime() {
+		return size == 0 ? Long.MAX_VALUE : heap[0].time;
+	}
 
-		public long getWakeTime() {
-			return wakeTime;
+	private static boolean isEarlier(Timeout x, Timeout y) {
+		return x.time < y.time || x.time == y.time && x.order < y.order;
+	}
+
+	private void siftUp(int i) {
+		Timeout x = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!isEarlier(x, heap[parent]))
+				break;
+			heap[i] = heap[parent];
+			heap[i].slot = i;
+			i = parent;
 		}
+		heap[i] = x;
+		x.slot = i;
+	}
 
-		@Override
-		public int compareTo(WaitThread rhs) {
-			return	Long.compare(wakeTime, rhs.getWakeTime());
+	private void siftDown(int i) {
+		Timeout x = heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && isEarlier(heap[child + 1], heap[child]))
+				child++;
+			if (!isEarlier(heap[child], x))
+				break;
+			heap[i] = heap[child];
+			heap[i].slot = i;
+			i = child;
 		}
+		heap[i] = x;
+		x.slot = i;
 	}
 
-	private PriorityQueue<WaitThread> threadQueue = new PriorityQueue<>();
+	/**
+	 * Called when a thread other than the current thread becomes ready. If
+	 * the timer is tickless, make sure it interrupts in time to preempt the
+	 * current thread.
+	 */
+	void threadReady() {
+		Machine.timer().requestInterrupt(
+				Machine.timer().getTime() + Stats.TimerTicks);
+	}
+
+	/**
+	 * Run the handler of a timeout that is due, and that is no longer tracked.
+	 * 
+	 * @param timeout
+	 *            the timeout.
+	 */
+	protected final void fire(Timeout timeout) {
+		timeout.alarm = null;
+		timeout.handler.run();
+	}
+
+	/**
+	 * Let a number of threads sleep repeatedly for random periods, some of
+	 * them long, and check that none of them wakes up early.
+	 */
+	public static void selfTest() {
+		final int numThreads = 20, numSleeps = 10;
+
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			final long range = i % 4 == 0 ? 1 << 20 : 5000;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < numSleeps; j++) {
+						long x = Lib.random((int) range);
+						long wakeTime = Machine.timer().getTime() + x;
+						ThreadedKernel.alarm.waitUntil(x);
+						Lib.assertTrue(Machine.timer().getTime() >= wakeTime);
+					}
+				}
+			}).setName("sleeper " + i);
+		}
+
+		for (KThread thread : threads)
+			thread.fork();
+		for (KThread thread : threads)
+			thread.join();
+
+		testTimeouts();
+	}
+
+	/**
+	 * Check that timed waits give up after their timeout, that they succeed
+	 * if they are satisfied in time, and that a canceled timeout never runs.
+	 */
+	private static void testTimeouts() {
+		final Alarm alarm = ThreadedKernel.alarm;
+
+		final boolean[] ran = new boolean[1];
+		Timeout timeout = alarm.schedule(Machine.timer().getTime() + 1000,
+				new Runnable() {
+					public void run() {
+						ran[0] = true;
+					}
+				});
+		Lib.assertTrue(timeout.isPending() && timeout.cancel());
+		Lib.assertTrue(!timeout.isPending() && !timeout.cancel());
+		alarm.waitUntil(2000);
+		Lib.assertTrue(!ran[0]);
+
+		final int[] numRun = new int[1];
+		Timeout[] timeouts = new Timeout[8];
+		long now = Machine.timer().getTime();
+		for (int i = 0; i < timeouts.length; i++) {
+			final boolean keep = (i % 2 == 0);
+			timeouts[i] = alarm.schedule(now + 1000 * (timeouts.length - i),
+					new Runnable() {
+						public void run() {
+							Lib.assertTrue(keep);
+							numRun[0]++;
+						}
+					});
+		}
+		for (int i = 1; i < timeouts.length; i += 2)
+			Lib.assertTrue(timeouts[i].cancel());
+		alarm.waitUntil(1000 * timeouts.length);
+		Lib.assertTrue(numRun[0] == timeouts.length / 2);
+
+		final Semaphore semaphore = new Semaphore(0);
+		long start = Machine.timer().getTime();
+		Lib.assertTrue(!semaphore.P(1000));
+		Lib.assertTrue(Machine.timer().getTime() - start >= 1000);
+
+		new KThread(new Runnable() {
+			public void run() {
+				alarm.waitUntil(1000);
+				semaphore.V();
+			}
+		}).setName("timeout V").fork();
+		Lib.assertTrue(semaphore.P(100000));
+
+		final Lock lock = new Lock();
+		final Condition2 condition = new Condition2(lock);
+		KThread holder = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				alarm.waitUntil(5000);
+				condition.wake();
+				lock.release();
+			}
+		}).setName("timeout holder");
+		holder.fork();
+		alarm.waitUntil(100);
+		Lib.assertTrue(!lock.tryAcquire(1000));
+		Lib.assertTrue(lock.tryAcquire(100000));
+		Lib.assertTrue(!condition.sleep(1000));
+		start = Machine.timer().getTime();
+		Lib.assertTrue(!condition.sleep(0) && lock.isHeldByCurrentThread());
+		Lib.assertTrue(Machine.timer().getTime() == start);
+		lock.release();
+		holder.join();
+	}
+
+	/**
+	 * A handler that an alarm will run at a given time, unless it is canceled.
+	 * A timeout may be set again once it has run or been canceled.
+	 */
+	public static class Timeout {
+		/**
+		 * Allocate a new timeout that is not pending.
+		 * 
+		 * @param handler
+		 *            the handler to run when the timeout is due.
+		 */
+		public Timeout(Runnable handler) {
+			this.handler = handler;
+		}
+
+		/**
+		 * Cancel this timeout if it has not run yet.
+		 * 
+		 * @return <tt>true</tt> if the timeout was pending and will now not
+		 *         run.
+		 */
+		public boolean cancel() {
+			boolean status = Machine.interrupt().disable();
+
+			Alarm owner = alarm;
+			if (owner != null) {
+				alarm = null;
+				owner.remove(this);
+			}
+
+			Machine.interrupt().restore(status);
+			return owner != null;
+		}
+
+		/**
+		 * Return <tt>true</tt> if this timeout is set and has not run or been
+		 * canceled.
+		 * 
+		 * @return <tt>true</tt> if this timeout is pending.
+		 */
+		public boolean isPending() {
+			return alarm != null;
+		}
+
+		/**
+		 * Return the absolute time at which this timeout was last set to run.
+		 * 
+		 * @return the time of this timeout.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		private Runnable handler;
+		/** The alarm this timeout is pending on, or <tt>null</tt>. */
+		private Alarm alarm = null;
+		long time;
+		/** The order in which timeouts were set, to break ties. */
+		private long order;
+		/**
+		 * The slot holding this timeout in a timing wheel, or its index in
+		 * the heap of an <tt>Alarm</tt>, or -1.
+		 */
+		int slot = -1;
+		Timeout prev = null, next = null;
+	}
+
+	/**
+	 * The timeout that a thread uses to sleep, either until a given time or,
+	 * with a wait queue, until it is woken or the time comes.
+	 */
+	private static class Sleeper implements Runnable {
+		Sleeper(KThread thread) {
+			this.thread = thread;
+			this.timeout = new Timeout(this);
+		}
+
+		public void run() {
+			if (waitQueue == null) {
+				thread.ready();
+			} else if (waitQueue.remove(thread)) {
+				expired = true;
+				thread.ready();
+			}
+		}
+
+		private final KThread thread;
+		private final Timeout timeout;
+		/** The queue the thread is waiting on in <tt>sleepOn()</tt>. */
+		private ThreadQueue waitQueue = null;
+		private boolean expired;
+	}
+
+	private long numTimeouts = 0;
+	/**
+	 * The pending timeouts, in a binary min-heap ordered by time and then by
+	 * the order in which they were set. Every timeout remembers its index in
+	 * <tt>slot</tt>, so canceling one costs <i>O(log n)</i> rather than a scan
+	 * of the heap.
+	 */
+	private Timeout[] heap = new Timeout[16];
+	private int size = 0;
 }
@@ -0,0 +1,304 @@
+package nachos.threads;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A synchronized queue that holds at most a fixed number of objects.
+ *
+ * <p>
+ * Unlike a <tt>SynchList</tt>, the objects are kept in a ring buffer, so adding
+ * and removing them allocates nothing, and a thread that adds to a full queue
+ * waits until there is room. A consumer can take every available object with
+ * one lock acquisition, using <tt>drainTo()</tt>.
+ */
+public class BoundedSynchList<T> {
+	/**
+	 * Allocate a new bounded synchronized queue.
+	 *
+	 * @param capacity
+	 *            the maximum number of objects the queue can hold.
+	 */
+	public BoundedSynchList(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		items = new Object[capacity];
+		lock = new Lock();
+		notEmpty = new Condition(lock);
+		notFull = new Condition(lock);
+	}
+
+	/**
+	 * Add the specified object to the end of the queue, waiting until there is
+	 * room if necessary. If another thread is waiting in
+	 * <tt>removeFirst()</tt>, it is woken up.
+	 *
+	 * @param o
+	 *            the object to add. Must not be <tt>null</tt>.
+	 */
+	public void add(T o) {
+		Lib.assertTrue(o != null);
+
+		lock.acquire();
+		while (count == items.length)
+			waitForRoom();
+		put(o);
+		wakeConsumers(1);
+		lock.release();
+	}
+
+	/**
+	 * Add the specified objects to the end of the queue, in order, waiting for
+	 * room as necessary. Objects from other threads may be added between them
+	 * while this thread waits.
+	 *
+	 * @param c
+	 *            the objects to add. None may be <tt>null</tt>.
+	 */
+	public void addAll(Collection<? extends T> c) {
+		lock.acquire();
+		int added = 0;
+		for (T o : c) {
+			Lib.assertTrue(o != null);
+
+			if (count == items.length) {
+				wakeConsumers(added);
+				added = 0;
+				while (count == items.length)
+					waitForRoom();
+			}
+			put(o);
+			added++;
+		}
+		wakeConsumers(added);
+		lock.release();
+	}
+
+	/**
+	 * Add the specified object to the end of the queue if there is room for
+	 * it, without waiting.
+	 *
+	 * @param o
+	 *            the object to add. Must not be <tt>null</tt>.
+	 * @return <tt>true</tt> if the object was added.
+	 */
+	public boolean offer(T o) {
+		Lib.assertTrue(o != null);
+
+		lock.acquire();
+		boolean added = count < items.length;
+		if (added) {
+			put(o);
+			wakeConsumers(1);
+		}
+		lock.release();
+		return added;
+	}
+
+	/**
+	 * Remove an object from the front of the queue, blocking until the queue is
+	 * non-empty if necessary.
+	 *
+	 * @return the element removed from the front of the queue.
+	 */
+	public T removeFirst() {
+		lock.acquire();
+		while (count == 0) {
+			numConsumersWaiting++;
+			notEmpty.sleep();
+			numConsumersWaiting--;
+		}
+		T o = take();
+		wakeProducers(1);
+		lock.release();
+
+		return o;
+	}
+
+	/**
+	 * Remove an object from the front of the queue, without waiting.
+	 *
+	 * @return the element removed from the front of the queue, or
+	 *         <tt>null</tt> if the queue is empty.
+	 */
+	public T poll() {
+		lock.acquire();
+		T o = null;
+		if (count > 0) {
+			o = take();
+			wakeProducers(1);
+		}
+		lock.release();
+
+		return o;
+	}
+
+	/**
+	 * Remove up to <i>max</i> objects from the front of the queue and add them
+	 * to the end of the specified list, without waiting. To wait for at least
+	 * one object, call <tt>removeFirst()</tt> first.
+	 *
+	 * @param list
+	 *            the list to add the objects to.
+	 * @param max
+	 *            the maximum number of objects to remove.
+	 * @return the number of objects removed.
+	 */
+	public int drainTo(List<? super T> list, int max) {
+		lock.acquire();
+		int n = Math.min(count, max);
+		for (int i = 0; i < n; i++)
+			list.add(take());
+		wakeProducers(n);
+		lock.release();
+
+		return n;
+	}
+
+	private void waitForRoom() {
+		numProducersWaiting++;
+		notFull.sleep();
+		numProducersWaiting--;
+	}
+
+	/**
+	 * Wake as many waiting consumers as there are new objects, but no more
+	 * than are waiting.
+	 */
+	private void wakeConsumers(int n) {
+		for (int i = Math.min(n, numConsumersWaiting); i > 0; i--)
+			notEmpty.wake();
+	}
+
+	/**
+	 * Wake as many waiting producers as there are free slots, but no more than
+	 * are waiting.
+	 */
+	private void wakeProducers(int n) {
+		for (int i = Math.min(n, numProducersWaiting); i > 0; i--)
+			notFull.wake();
+	}
+
+	private void put(T o) {
+		items[(head + count) % items.length] = o;
+		count++;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T take() {
+		T o = (T) items[head];
+		items[head] = null;
+		head = (head + 1) % items.length;
+		count--;
+		return o;
+	}
+
+	/**
+	 * Test that this module is working, including passing objects from one
+	 * thread to another one at a time and in batches.
+	 */
+	public static void selfTest() {
+		BoundedSynchList<Integer> list = new BoundedSynchList<Integer>(2);
+		Lib.assertTrue(list.offer(1) && list.offer(2) && !list.offer(3));
+		Lib.assertTrue(list.poll() == 1);
+		list.add(3);
+		ArrayList<Integer> drained = new ArrayList<Integer>();
+		Lib.assertTrue(list.drainTo(drained, 10) == 2 && list.poll() == null);
+		Lib.assertTrue(drained.get(0) == 2 && drained.get(1) == 3);
+
+		transfer(1, 256);
+		transfer(2, 256);
+	}
+
+	/**
+	 * Pass objects from one thread to another through a <tt>SynchList</tt>,
+	 * through this class one at a time, and through this class in batches.
+	 * Prints the simulated and real time each way takes.
+	 */
+	public static void benchmark() {
+		String results = "";
+		for (int i = 0; i < 3; i++) {
+			long ticks = Machine.timer().getTime(), start = System.nanoTime();
+			transfer(i, 4000);
+			results += (i == 0 ? "SynchList " : i == 1 ? ", one at a time "
+					: ", batched ")
+					+ (Machine.timer().getTime() - ticks)
+					+ " ticks "
+					+ (System.nanoTime() - start) / 1000000 + " ms";
+		}
+
+		System.out.println("BoundedSynchList: " + results);
+	}
+
+	/**
+	 * Pass objects in order from a producer to a consumer, and check that
+	 * they arrive in order.
+	 *
+	 * @param way
+	 *            0 to use a <tt>SynchList</tt>, 1 to use this class one object
+	 *            at a time, or 2 to use it in batches.
+	 * @param numObjects
+	 *            the number of objects to pass.
+	 */
+	private static void transfer(final int way, final int numObjects) {
+		final int capacity = 16;
+		final SynchList<Integer> synchList = new SynchList<Integer>();
+		final BoundedSynchList<Integer> list = new BoundedSynchList<Integer>(
+				capacity);
+
+		KThread producer = new KThread(new Runnable() {
+			public void run() {
+				ArrayList<Integer> batch = new ArrayList<Integer>(capacity);
+				for (int i = 0; i < numObjects; i++) {
+					// small enough to come from the Integer cache
+					Integer o = i % 100;
+					if (way == 0) {
+						synchList.add(o);
+					} else if (way == 1) {
+						list.add(o);
+					} else {
+						batch.add(o);
+						if (batch.size() == capacity) {
+							list.addAll(batch);
+							batch.clear();
+						}
+					}
+				}
+				list.addAll(batch);
+			}
+		}).setName("producer");
+		producer.fork();
+
+		ArrayList<Integer> batch = new ArrayList<Integer>(capacity);
+		for (int i = 0; i < numObjects;) {
+			if (way == 0) {
+				Lib.assertTrue(synchList.removeFirst() == i++ % 100);
+			} else if (way == 1) {
+				Lib.assertTrue(list.removeFirst() == i++ % 100);
+			} else {
+				batch.add(list.removeFirst());
+				list.drainTo(batch, capacity - 1);
+				for (Integer o : batch)
+					Lib.assertTrue(o == i++ % 100);
+				batch.clear();
+			}
+		}
+		producer.join();
+	}
+
+	private Object[] items;
+	/** The index of the object at the front of the queue. */
+	private int head = 0;
+	/** The number of objects in the queue. */
+	private int count = 0;
+	private int numConsumersWaiting = 0;
+	private int numProducersWaiting = 0;
+
+	private Lock lock;
+	private Condition notEmpty;
+	private Condition notFull;
+}
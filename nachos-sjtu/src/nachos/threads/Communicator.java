@@ -1,65 +1,366 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
 /**
- * A <i>communicator</i> allows threads to synchronously exchange 32-bit
- * messages. Multiple threads can be waiting to <i>speak</i>, and multiple
- * threads can be waiting to <i>listen</i>. But there should never be a time
- * when both a speaker and a listener are waiting, because the two threads can
- * be paired off at this point.
+ * A <i>communicator</i> allows threads to exchange 32-bit messages. Multiple
+ * threads can be waiting to <i>speak</i>, and multiple threads can be waiting
+ * to <i>listen</i>. But there should never be a time when both a speaker and a
+ * listener are waiting, because the two threads can be paired off at this
+ * point.
+ *
+ * <p>
+ * A communicator holds up to <i>capacity</i> words that no listener has asked
+ * for yet, in a ring buffer, so a speaker can get that far ahead of the
+ * listeners before it has to wait. Words spoken to listeners that are already
+ * waiting do not count against the capacity. With a capacity of 0, which is
+ * the default, a speaker waits until a listener asks for its word, so
+ * speakers and listeners meet as in a rendezvous.
  */
 public class Communicator {
 	/**
-	 * Allocate a new communicator.
+	 * Allocate a new communicator, with the capacity given by
+	 * <tt>Communicator.capacity</tt>.
 	 */
 	public Communicator() {
+		this(Config.getInteger("Communicator.capacity", 0));
+	}
+
+	/**
+	 * Allocate a new communicator.
+	 *
+	 * @param capacity
+	 *            the number of words speakers may get ahead of listeners, or 0
+	 *            for a rendezvous.
+	 */
+	public Communicator(int capacity) {
+		Lib.assertTrue(capacity >= 0);
+
+		this.capacity = capacity;
+		buffer = new int[Math.max(capacity, 1)];
 		lock = new Lock();
-		use = false;
-		spe = new Condition2(lock);
-		lis = new Condition2(lock);
-		listener = 0;
+		speakers = new Condition2(lock);
+		listeners = new Condition2(lock);
 	}
 
 	/**
-	 * Wait for a thread to listen through this communicator, and then transfer
-	 * <i>word</i> to the listener.
-	 * 
+	 * Wait for room in this communicator, and then transfer <i>word</i> to it.
+	 *
 	 * <p>
-	 * Does not return until this thread is paired up with a listening thread.
-	 * Exactly one listener should receive <i>word</i>.
-	 * 
+	 * With a capacity of 0, does not return until this thread is paired up
+	 * with a listening thread. Exactly one listener should receive
+	 * <i>word</i>.
+	 *
 	 * @param word
 	 *            the integer to transfer.
 	 */
 	public void speak(int word) {
 		lock.acquire();
-		while (use || listener == 0) spe.sleep();
-		this.word = word;
-		use = true;
-		lis.wake();
+		waitForRoom();
+		put(word);
+		signal();
+		lock.release();
+	}
+
+	/**
+	 * Transfer all of the specified words, in order, waiting for room as
+	 * necessary. Words from other speakers may be mixed in with them while
+	 * this thread waits.
+	 *
+	 * @param words
+	 *            the integers to transfer.
+	 */
+	public void speakAll(int[] words) {
+		lock.acquire();
+		for (int offset = 0; offset < words.length;) {
+			waitForRoom();
+			int n = Math.min(room(), words.length - offset);
+			put(words, offset, n);
+			offset += n;
+			signal();
+		}
+		lock.release();
+	}
+
+	/**
+	 * Transfer <i>word</i> to this communicator if there is room for it,
+	 * without waiting.
+	 *
+	 * @param word
+	 *            the integer to transfer.
+	 * @return <tt>true</tt> if <i>word</i> was transferred.
+	 */
+	public boolean trySpeak(int word) {
+		lock.acquire();
+		boolean spoken = room() > 0;
+		if (spoken) {
+			put(word);
+			signal();
+		}
 		lock.release();
+		return spoken;
 	}
 
 	/**
 	 * Wait for a thread to speak through this communicator, and then return the
 	 * <i>word</i> that thread passed to <tt>speak()</tt>.
-	 * 
+	 *
 	 * @return the integer transferred.
 	 */
 	public int listen() {
 		lock.acquire();
-		++listener;
-		spe.wake();
-		while (!use) lis.sleep();
-		int ret = word;
-		use = false;
-		--listener;
-		spe.wake();
+		waitForWords();
+		int word = buffer[head];
+		head = (head + 1) % buffer.length;
+		count--;
+		numListening--;
+		signal();
 		lock.release();
-		return ret;
+		return word;
 	}
 
+	/**
+	 * Wait for at least one word, and then receive as many words as are
+	 * available, up to the length of <i>words</i>.
+	 *
+	 * @param words
+	 *            the array to receive the words in.
+	 * @return the number of words received.
+	 */
+	public int listenInto(int[] words) {
+		Lib.assertTrue(words.length > 0);
+
+		lock.acquire();
+		waitForWords();
+		int n = take(words);
+		numListening--;
+		signal();
+		lock.release();
+		return n;
+	}
+
+	/**
+	 * Receive as many words as are available, up to the length of
+	 * <i>words</i>, without waiting. With a capacity of 0, speakers only go
+	 * ahead when listeners are waiting, so this can only find words spoken to
+	 * listeners that have not run yet; those listeners then wait for other
+	 * words.
+	 *
+	 * @param words
+	 *            the array to receive the words in.
+	 * @return the number of words received, which may be 0.
+	 */
+	public int tryListen(int[] words) {
+		lock.acquire();
+		int n = take(words);
+		if (n > 0)
+			signal();
+		lock.release();
+		return n;
+	}
+
+	/**
+	 * Check that speakers and listeners exchange every word exactly once, and
+	 * that words passed from one thread to another through a rendezvous and
+	 * through a buffer, one at a time and in batches, arrive in order.
+	 */
+	public static void selfTest() {
+		testExchange(0);
+		testExchange(3);
+
+		for (int i = 0; i < 3; i++)
+			pipeline(i == 0 ? 0 : testBatch, i == 2 ? testBatch : 1, 256);
+	}
+
+	/**
+	 * Pass many words from one thread to another through a rendezvous and
+	 * through a buffer, one at a time and in batches. Prints the simulated and
+	 * real time each way takes.
+	 */
+	public static void benchmark() {
+		String results = "";
+		for (int i = 0; i < 3; i++) {
+			long ticks = Machine.timer().getTime(), start = System.nanoTime();
+			pipeline(i == 0 ? 0 : testBatch, i == 2 ? testBatch : 1, 4000);
+			results += (i == 0 ? "rendezvous " : i == 1 ? ", buffered "
+					: ", batched ")
+					+ (Machine.timer().getTime() - ticks)
+					+ " ticks "
+					+ (System.nanoTime() - start) / 1000000 + " ms";
+		}
+
+		System.out.println("Communicator: " + results);
+	}
+
+	private static void testExchange(int capacity) {
+		final int numSpeakers = 3, numListeners = 4, numWords = 60;
+		final Communicator communicator = new Communicator(capacity);
+		final int[] received = new int[numWords];
+
+		KThread[] threads = new KThread[numSpeakers + numListeners];
+		for (int i = 0; i < numSpeakers; i++) {
+			final int id = i;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int word = id; word < numWords; word += numSpeakers)
+						communicator.speak(word);
+				}
+			}).setName("speaker " + i);
+		}
+		for (int i = 0; i < numListeners; i++) {
+			threads[numSpeakers + i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < numWords / numListeners; j++)
+						received[communicator.listen()]++;
+				}
+			}).setName("listener " + i);
+		}
+
+		for (KThread thread : threads)
+			thread.fork();
+		for (KThread thread : threads)
+			thread.join();
+
+		for (int i = 0; i < numWords; i++)
+			Lib.assertTrue(received[i] == 1);
+	}
+
+	/**
+	 * Pass words in order from a producer to a consumer, in batches of the
+	 * specified size, and check that they arrive in order. The number of words
+	 * must be a multiple of the batch size.
+	 */
+	private static void pipeline(int capacity, final int batch,
+			final int numWords) {
+		final Communicator communicator = new Communicator(capacity);
+
+		KThread producer = new KThread(new Runnable() {
+			public void run() {
+				int[] words = new int[batch];
+				for (int i = 0; i < numWords; i += batch) {
+					if (batch == 1) {
+						communicator.speak(i);
+					} else {
+						for (int j = 0; j < batch; j++)
+							words[j] = i + j;
+						communicator.speakAll(words);
+					}
+				}
+			}
+		}).setName("producer");
+		producer.fork();
+
+		int[] words = new int[batch];
+		for (int i = 0; i < numWords;) {
+			if (batch == 1) {
+				Lib.assertTrue(communicator.listen() == i++);
+			} else {
+				int n = communicator.listenInto(words);
+				for (int j = 0; j < n; j++)
+					Lib.assertTrue(words[j] == i++);
+			}
+		}
+		producer.join();
+
+		Lib.assertTrue(!communicator.trySpeak(0) || capacity > 0);
+		Lib.assertTrue(communicator.tryListen(words) == (capacity > 0 ? 1 : 0));
+	}
+
+	/**
+	 * Return the number of words that may be transferred without waiting.
+	 */
+	private int room() {
+		return capacity + numListening - count;
+	}
+
+	private void waitForRoom() {
+		while (room() == 0) {
+			numSpeakersSleeping++;
+			speakers.sleep();
+			numSpeakersSleeping--;
+		}
+	}
+
+	/**
+	 * Count the current thread as a waiting listener, which makes room for a
+	 * speaker, and wait for words to arrive.
+	 */
+	private void waitForWords() {
+		numListening++;
+		signal();
+		while (count == 0) {
+			numListenersSleeping++;
+			listeners.sleep();
+			numListenersSleeping--;
+		}
+	}
+
+	/**
+	 * Wake a speaker if there is room, and a listener if there are words. Each
+	 * thread signals again once it is done, so every thread that can make
+	 * progress is eventually woken, one at a time.
+	 */
+	private void signal() {
+		if (numSpeakersSleeping > 0 && room() > 0)
+			speakers.wake();
+		if (numListenersSleeping > 0 && count > 0)
+			listeners.wake();
+	}
+
+	private void put(int word) {
+		if (count == buffer.length)
+			grow(count + 1);
+		buffer[(head + count) % buffer.length] = word;
+		count++;
+	}
+
+	private void put(int[] words, int offset, int n) {
+		if (count + n > buffer.length)
+			grow(count + n);
+		int tail = (head + count) % buffer.length;
+		int first = Math.min(n, buffer.length - tail);
+		System.arraycopy(words, offset, buffer, tail, first);
+		System.arraycopy(words, offset + first, buffer, 0, n - first);
+		count += n;
+	}
+
+	private int take(int[] words) {
+		int n = Math.min(count, words.length);
+		int first = Math.min(n, buffer.length - head);
+		System.arraycopy(buffer, head, words, 0, first);
+		System.arraycopy(buffer, 0, words, first, n - first);
+		head = (head + n) % buffer.length;
+		count -= n;
+		return n;
+	}
+
+	/**
+	 * Make room in the buffer for words spoken to waiting listeners beyond the
+	 * capacity.
+	 */
+	private void grow(int minLength) {
+		int[] larger = new int[Math.max(minLength, buffer.length * 2)];
+		int n = count;
+		take(larger);
+		buffer = larger;
+		head = 0;
+		count = n;
+	}
+
+	/** The batch size used by the self-test and benchmark. */
+	private static final int testBatch = 16;
+
+	private final int capacity;
+	private int[] buffer;
+	/** The index of the oldest word in <tt>buffer</tt>. */
+	private int head = 0;
+	/** The number of words in <tt>buffer</tt>. */
+	private int count = 0;
+	/** The number of listeners that have not yet received their words. */
+	private int numListening = 0;
+	private int numSpeakersSleeping = 0;
+	private int numListenersSleeping = 0;
+
 	private Lock lock;
-	private int word, listener;
-	private boolean use;
-	private Condition2 spe, lis;
+	private Condition2 speakers, listeners;
 }
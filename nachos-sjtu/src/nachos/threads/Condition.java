@@ -2,8 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-
 /**
  * An implementation of condition variables built upon semaphores.
  * 
@@ -61,8 +59,6 @@ public class Condition {
 	 */
 	public Condition(Lock conditionLock) {
 		this.conditionLock = conditionLock;
-
-		waitQueue = new LinkedList<>();
 	}
 
 	/**
@@ -72,19 +68,30 @@ public class Condition {
 	 * reacquire the lock before <tt>sleep()</tt> returns.
 	 * 
 	 * <p>
-	 * This implementation uses semaphores to implement this, by allocating a
-	 * semaphore for each waiting thread. The waker will <tt>V()</tt> this
+	 * This implementation uses semaphores to implement this, by giving each
+	 * thread a semaphore that it waits on. The waker will <tt>V()</tt> this
 	 * semaphore, so thre is no chance the sleeper will miss the wake-up, even
-	 * though the lock is released before caling <tt>P()</tt>.
+	 * though the lock is released before caling <tt>P()</tt>. The semaphore
+	 * is back at 0 once <tt>P()</tt> returns, so the thread reuses it every
+	 * time it sleeps, and the sleeping threads are linked through the threads
+	 * themselves; sleeping and waking allocate nothing.
 	 */
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		Semaphore waiter = new Semaphore(0);
-		waitQueue.add(waiter);
+		KThread thread = KThread.currentThread();
+		if (thread.parkSemaphore == null)
+			thread.parkSemaphore = new Semaphore(0);
+
+		thread.nextWaiter = null;
+		if (lastWaiter == null)
+			firstWaiter = thread;
+		else
+			lastWaiter.nextWaiter = thread;
+		lastWaiter = thread;
 
 		conditionLock.release();
-		waiter.P();
+		thread.parkSemaphore.P();
 		conditionLock.acquire();
 	}
 
@@ -95,8 +102,14 @@ public class Condition {
 	public void wake() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		if (!waitQueue.isEmpty())
-			(waitQueue.removeFirst()).V();
+		KThread thread = firstWaiter;
+		if (thread != null) {
+			firstWaiter = thread.nextWaiter;
+			if (firstWaiter == null)
+				lastWaiter = null;
+			thread.nextWaiter = null;
+			thread.parkSemaphore.V();
+		}
 	}
 
 	/**
@@ -107,12 +120,13 @@ public class Condition {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
 		int t = 0;
-		while (!waitQueue.isEmpty()) {
+		while (firstWaiter != null) {
 			Lib.debug('w', String.valueOf(++t));
 			wake();
 		}
 	}
 
 	private Lock conditionLock;
-	private LinkedList<Semaphore> waitQueue;
+	/** The threads sleeping on this condition, in the order they slept. */
+	private KThread firstWaiter = null, lastWaiter = null;
 }
@@ -7,7 +7,12 @@ import nachos.machine.*;
  * synchronization.
  * 
  * <p>
- * You must implement this.
+ * A thread woken by <tt>wake()</tt> or <tt>wakeAll()</tt> is not made ready.
+ * Since the waker holds the associated lock, the woken thread could not get
+ * far anyway. It is moved straight onto the lock's wait queue instead, and
+ * runs once the lock is handed to it. Waking many threads therefore costs no
+ * context switches, and the threads take the lock one after another instead
+ * of all waking up to compete for it.
  * 
  * @see nachos.threads.Condition
  */
@@ -33,15 +38,46 @@ public class Condition2 {
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+		// disable interrupts first, so that no wake() is lost in between
+		boolean status = Machine.interrupt().disable();
 		conditionLock.release();
 
-		boolean status = Machine.interrupt().disable();
 		threadQueue.waitForAccess(KThread.currentThread());
 		KThread.sleep();
 		//Attention: the thread must sleep without holding the lock
 
-		conditionLock.acquire();
+		// a woken thread may already have been handed the lock
+		if (!conditionLock.isHeldByCurrentThread())
+			conditionLock.acquire();
+		Machine.interrupt().restore(status);
+	}
+
+	/**
+	 * Like <tt>sleep()</tt>, but stop sleeping on this condition variable if
+	 * no other thread wakes the current thread within the specified number of
+	 * ticks. The thread reacquires the associated lock before returning in
+	 * either case. Like <tt>Semaphore.P(long)</tt>, if the timeout is not
+	 * positive this returns <tt>false</tt> at once, without releasing the lock.
+	 * 
+	 * @param timeout
+	 *            the maximum number of clock ticks to sleep.
+	 * @return <tt>true</tt> if another thread woke the current thread, or
+	 *         <tt>false</tt> if the timeout expired first.
+	 */
+	public boolean sleep(long timeout) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+		if (timeout <= 0)
+			return false;
+
+		boolean status = Machine.interrupt().disable();
+		conditionLock.release();
+		threadQueue.waitForAccess(KThread.currentThread());
+		boolean woken = ThreadedKernel.alarm.sleepOn(threadQueue,
+				Machine.timer().getTime() + timeout);
+		if (!conditionLock.isHeldByCurrentThread())
+			conditionLock.acquire();
 		Machine.interrupt().restore(status);
+		return woken;
 	}
 
 	/**
@@ -56,7 +92,7 @@ public class Condition2 {
 		KThread thread = threadQueue.nextThread();
 
 		if (thread != null) {
-			thread.ready();
+			conditionLock.enqueue(thread);
 		}
 
 		Machine.interrupt().restore(status);
@@ -71,13 +107,97 @@ public class Condition2 {
 
 		boolean status = Machine.interrupt().disable();
 
-		while (threadQueue.nextThread() != null) {
-			wake();
-		}
+		conditionLock.enqueueAll(threadQueue);
 
 		Machine.interrupt().restore(status);
 	}
 
+	/**
+	 * Check that <tt>wakeAll()</tt> wakes every sleeping thread, with this
+	 * class and with <tt>Condition</tt>.
+	 */
+	public static void selfTest() {
+		broadcast(false);
+		broadcast(true);
+	}
+
+	/**
+	 * Compare the cost of waking a group of threads on a busy lock with
+	 * <tt>Condition</tt>, whose woken threads must each compete for the lock
+	 * again, and with this class. Prints the simulated and real time each
+	 * takes.
+	 */
+	public static void benchmark() {
+		long[] semaphores = broadcast(false);
+		long[] morphing = broadcast(true);
+
+		System.out.println("Condition2: wakeAll, Condition " + semaphores[0]
+				+ " ticks " + semaphores[1] + " ms, Condition2 " + morphing[0]
+				+ " ticks " + morphing[1] + " ms");
+	}
+
+	/**
+	 * Repeatedly wake a group of threads with <tt>wakeAll()</tt>, using a
+	 * <tt>Condition2</tt> or a <tt>Condition</tt>, and return the simulated
+	 * ticks and real milliseconds it took.
+	 */
+	private static long[] broadcast(final boolean useCondition2) {
+		final int numWaiters = 10, numRounds = 50;
+		final Lock lock = new Lock();
+		final Condition2 condition2 = new Condition2(lock);
+		final Condition condition = new Condition(lock);
+		// generation, threads waiting for the next generation, wakeups
+		final int[] state = new int[3];
+
+		KThread[] threads = new KThread[numWaiters];
+		for (int i = 0; i < numWaiters; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					lock.acquire();
+					for (int j = 0; j < numRounds; j++) {
+						int generation = state[0];
+						state[1]++;
+						while (state[0] == generation) {
+							if (useCondition2)
+								condition2.sleep();
+							else
+								condition.sleep();
+						}
+						state[2]++;
+					}
+					lock.release();
+				}
+			}).setName("waiter " + i);
+		}
+
+		long ticks = Machine.timer().getTime(), start = System.nanoTime();
+		for (KThread thread : threads)
+			thread.fork();
+
+		for (int i = 0; i < numRounds; i++) {
+			lock.acquire();
+			while (state[1] < numWaiters) {
+				lock.release();
+				KThread.yield();
+				lock.acquire();
+			}
+			state[0]++;
+			state[1] = 0;
+			if (useCondition2)
+				condition2.wakeAll();
+			else
+				condition.wakeAll();
+			lock.release();
+		}
+
+		for (KThread thread : threads)
+			thread.join();
+
+		Lib.assertTrue(state[2] == numWaiters * numRounds);
+		return new long[] { Machine.timer().getTime() - ticks,
+				(System.nanoTime() - start) / 1000000 };
+	}
+
 	private Lock conditionLock;
 	private ThreadQueue threadQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 
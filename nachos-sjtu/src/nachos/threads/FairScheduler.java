@@ -0,0 +1,431 @@
+package nachos.threads;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that shares the processor fairly by virtual run time.
+ *
+ * <p>
+ * Every thread accumulates <i>virtual run time</i> while it runs, at a rate
+ * inversely proportional to a weight derived from its priority. A queue always
+ * gives access to the waiting thread with the smallest virtual run time, so
+ * over time every thread receives processor time in proportion to its weight.
+ * Waiting threads are kept in a red-black tree (a <tt>TreeSet</tt>), so both
+ * adding a thread and choosing the next one take <i>O(log n)</i>.
+ *
+ * <p>
+ * A thread that has been sleeping is placed on the ready queue no further than
+ * <tt>FairScheduler.granularity</tt> ticks behind the least virtual run time
+ * of the queue, so it is chosen promptly after it wakes up without being able
+ * to monopolize the processor. Conversely, a thread that yields keeps the
+ * processor unless another thread is at least that far behind it, which avoids
+ * switching on every timer interrupt between threads of similar run time.
+ * Queues that transfer priority, such as those of locks and joins, leave the
+ * virtual run time of their waiters unchanged, since their order does not
+ * decide how the processor is shared.
+ */
+public class FairScheduler extends Scheduler {
+	/**
+	 * Allocate a new fair scheduler.
+	 */
+	public FairScheduler() {
+		granularity = Config.getInteger("FairScheduler.granularity", 200)
+				* (long) weightDefault;
+	}
+
+	/**
+	 * Allocate a new fair thread queue.
+	 *
+	 * @param transferPriority
+	 *            <tt>true</tt> if the queue is owned by a lock or a thread
+	 *            being joined. Virtual run time is not donated, and a waiter
+	 *            on such a queue keeps its virtual run time as it is.
+	 * @return a new fair thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FairQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).priority;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).priority = priority;
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	/**
+	 * The default priority for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+	/**
+	 * The minimum priority that a thread can have.
+	 */
+	public static final int priorityMinimum = 0;
+	/**
+	 * The maximum priority that a thread can have.
+	 */
+	public static final int priorityMaximum = 7;
+
+	/**
+	 * The weight of each priority. Each step up the priority scale gives a
+	 * thread about 25% more processor time than the step below.
+	 */
+	private static final int[] weights = { 820, 1024, 1277, 1586, 1991, 2501,
+			3121, 3906 };
+	private static final int weightDefault = weights[priorityDefault];
+
+	/**
+	 * Check, on queues of a separate fair scheduler, that threads are
+	 * dispatched in proportion to their weights, and that a thread that starts
+	 * waiting on the ready queue is placed no further than
+	 * <tt>granularity</tt> behind the least virtual run time of the queue,
+	 * while one that waits for a lock keeps its own. Runs only under a fair
+	 * scheduler, since the current thread's scheduling state is shared.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof FairScheduler))
+			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		FairScheduler scheduler = new FairScheduler();
+		// time stands still from here on, so the current thread is not charged
+		scheduler.lastCharge = Machine.timer().getTime();
+
+		final int numThreads = priorityMaximum - priorityMinimum + 1;
+		final int rounds = 4000;
+		final long quantum = 100;
+
+		FairQueue queue = (FairQueue) scheduler.newThreadQueue(false);
+		int[] dispatches = new int[numThreads];
+		long totalWeight = 0;
+		for (int i = 0; i < numThreads; i++) {
+			totalWeight += weights[priorityMinimum + i];
+			queue.waitForAccess(newTestThread(scheduler, priorityMinimum + i));
+		}
+
+		for (int round = 0; round < rounds; round++) {
+			KThread thread = queue.nextThread();
+			FairState state = scheduler.getThreadState(thread);
+			dispatches[state.priority - priorityMinimum]++;
+			state.charge(quantum);
+			queue.waitForAccess(thread);
+		}
+
+		for (int i = 0; i < numThreads; i++) {
+			double ideal = (double) rounds * weights[priorityMinimum + i]
+					/ totalWeight;
+			Lib.assertTrue(Math.abs(dispatches[i] - ideal) <= 2);
+		}
+
+		long least = queue.minVruntime;
+		Lib.assertTrue(least > scheduler.granularity);
+		KThread sleeper = newTestThread(scheduler, priorityDefault);
+		queue.waitForAccess(sleeper);
+		Lib.assertTrue(scheduler.getThreadState(sleeper).vruntime == least
+				- scheduler.granularity);
+		Lib.assertTrue(queue.nextThread() == sleeper);
+
+		ThreadQueue lockQueue = scheduler.newThreadQueue(true);
+		lockQueue.waitForAccess(queue.nextThread());
+		lockQueue.nextThread();
+		KThread waiter = newTestThread(scheduler, priorityDefault);
+		lockQueue.waitForAccess(waiter);
+		Lib.assertTrue(scheduler.getThreadState(waiter).vruntime == 0);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Create a thread that never runs, and give it to the specified scheduler
+	 * with the specified priority.
+	 */
+	private static KThread newTestThread(FairScheduler scheduler,
+			int priority) {
+		KThread thread = new KThread().setName("fair test");
+		thread.schedulingState = null;
+		scheduler.setPriority(thread, priority);
+		return thread;
+	}
+
+	/**
+	 * Measure the wakeup latency of threads that sleep on the alarm while
+	 * other threads are busy, under the current scheduler. The latency of a
+	 * wakeup is the time between the end of the sleep and the moment the
+	 * thread runs again.
+	 */
+	public static void benchmark() {
+		final int numBatch = 4, numInteractive = 4, numSleeps = 25;
+		final long sleepTicks = 200;
+
+		final long[] latencies = new long[numInteractive * numSleeps];
+		final int[] numRecorded = new int[1];
+		final int[] numRunning = new int[] { numInteractive };
+
+		KThread[] threads = new KThread[numBatch + numInteractive];
+		for (int i = 0; i < numBatch; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					while (numRunning[0] > 0) {
+						// advance simulated time without blocking
+						Machine.interrupt().disable();
+						Machine.interrupt().enable();
+					}
+				}
+			}).setName("batch " + i);
+		}
+		for (int i = 0; i < numInteractive; i++) {
+			threads[numBatch + i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < numSleeps; j++) {
+						long wakeTime = Machine.timer().getTime() + sleepTicks;
+						ThreadedKernel.alarm.waitUntil(sleepTicks);
+						latencies[numRecorded[0]++] = Machine.timer().getTime()
+								- wakeTime;
+					}
+					numRunning[0]--;
+				}
+			}).setName("interactive " + i);
+		}
+
+		for (KThread thread : threads)
+			thread.fork();
+		for (KThread thread : threads)
+			thread.join();
+
+		Arrays.sort(latencies);
+		System.out.println("FairScheduler: wakeup latency under "
+				+ ThreadedKernel.scheduler.getClass().getSimpleName()
+				+ ": p50 " + percentile(latencies, 50) + ", p90 "
+				+ percentile(latencies, 90) + ", p99 "
+				+ percentile(latencies, 99) + ", max "
+				+ latencies[latencies.length - 1] + " ticks");
+	}
+
+	private static long percentile(long[] sorted, int p) {
+		return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)];
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param kThread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected FairState getThreadState(KThread kThread) {
+		if (kThread.schedulingState == null)
+			kThread.schedulingState = new FairState(kThread);
+
+		return (FairState) kThread.schedulingState;
+	}
+
+	/**
+	 * Charge the ticks since the last charge to the current thread. Since the
+	 * processor only changes hands right after <tt>nextThread()</tt> with
+	 * interrupts disabled, the elapsed time always belongs to the current
+	 * thread.
+	 */
+	private void chargeCurrentThread() {
+		long now = Machine.timer().getTime();
+		long delta = now - lastCharge;
+		lastCharge = now;
+		if (delta == 0)
+			return;
+
+		FairState state = getThreadState(KThread.currentThread());
+		FairQueue queue = state.queue;
+		if (queue != null)
+			queue.waitSet.remove(state);
+		state.charge(delta);
+		if (queue != null)
+			queue.waitSet.add(state);
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that sorts threads by virtual run time.
+	 */
+	protected class FairQueue extends ThreadQueue {
+		FairQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			chargeCurrentThread();
+
+			FairState state = getThreadState(thread);
+			Lib.assertTrue(state.queue == null);
+			if (!transferPriority)
+				state.vruntime = Math.max(state.vruntime, minVruntime
+						- granularity);
+			state.enterTime = numWaits++;
+			state.queue = this;
+			waitSet.add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			chargeCurrentThread();
+
+			if (waitSet.isEmpty())
+				return null;
+
+			FairState next = waitSet.first();
+			FairState current = getThreadState(KThread.currentThread());
+			if (current.queue == this
+					&& current.vruntime - next.vruntime < granularity)
+				next = current;
+
+			waitSet.remove(next);
+			next.queue = null;
+
+			long least = next.vruntime;
+			if (!waitSet.isEmpty())
+				least = Math.min(least, waitSet.first().vruntime);
+			minVruntime = Math.max(minVruntime, least);
+
+			return next.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			FairState state = getThreadState(thread);
+			if (state.queue != this)
+				return false;
+
+			waitSet.remove(state);
+			state.queue = null;
+			return true;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (FairState state : waitSet)
+				System.out.print(state.thread + " (" + state.vruntime + ") ");
+		}
+
+		private TreeSet<FairState> waitSet = new TreeSet<>(
+				new Comparator<FairState>() {
+					public int compare(FairState x, FairState y) {
+						if (x.vruntime != y.vruntime)
+							return Long.compare(x.vruntime, y.vruntime);
+						return Long.compare(x.enterTime, y.enterTime);
+					}
+				});
+		/** The least virtual run time seen in this queue; never decreases. */
+		private long minVruntime = 0;
+		/**
+		 * <tt>true</tt> if this queue belongs to a lock or a joined thread,
+		 * whose waiters keep their virtual run time unchanged.
+		 */
+		private boolean transferPriority;
+	}
+
+	/**
+	 * The scheduling state of a thread.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class FairState {
+		/**
+		 * Allocate a new <tt>FairState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread
+		 *            the thread this state belongs to.
+		 */
+		public FairState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Add the specified run time to this thread's virtual run time,
+		 * scaled by the weight of its priority. The thread must not be
+		 * waiting on a queue, whose order this would change.
+		 *
+		 * @param ticks
+		 *            the number of ticks the thread ran.
+		 */
+		private void charge(long ticks) {
+			vruntime += ticks * weightDefault * weightDefault
+					/ weights[priority];
+		}
+
+		/** The thread with which this object is associated. */
+		private KThread thread;
+		private int priority = priorityDefault;
+		/** Virtual run time, in ticks scaled by the default weight. */
+		private long vruntime = 0;
+		/** Order in which this thread started waiting, to break ties. */
+		private long enterTime;
+		/** The queue this thread is waiting on, or <tt>null</tt>. */
+		private FairQueue queue = null;
+	}
+
+	/** The virtual run time a thread may lag behind, or lead, a queue. */
+	private final long granularity;
+	/** The time up to which the running threads have been charged. */
+	private long lastCharge = 0;
+	private long numWaits = 0;
+}
@@ -37,6 +37,23 @@ import nachos.machine.*;
  * </pre>
  * 
  * </blockquote>
+ * 
+ * <p>
+ * If <tt>ThreadedKernel.numProcessors</tt> is more than one, the kernel models
+ * that many processors. Each has its own ready queue, its own running thread
+ * and its own idle thread, so <tt>currentThread()</tt> returns the running
+ * thread of whichever processor is executing. There is still one simulated
+ * clock and one host thread running at a time: the processors take turns, and
+ * each switch of thread on one processor passes the turn to the next processor
+ * that has a thread to run. Kernel code therefore still gets mutual exclusion
+ * by disabling interrupts, as on one processor.
+ * 
+ * <p>
+ * A forked thread goes to the least loaded processor and stays there while it
+ * blocks and wakes. A processor with nothing to run steals a waiting thread
+ * from the busiest one, and <tt>balanceLoad()</tt> evens out the processors on
+ * every timer interrupt. Each ready queue orders only its own threads, so, as
+ * on a real multiprocessor, priorities and shares hold per processor.
  */
 public class KThread {
 	/**
@@ -65,15 +82,26 @@ public class KThread {
 		if (currentThread != null) {
 			tcb = new TCB();
 		} else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
-			readyQueue.acquire(this);
+			numProcessors = Config.getInteger("ThreadedKernel.numProcessors",
+					1);
+			Lib.assertTrue(numProcessors > 0);
+			readyQueues = new ThreadQueue[numProcessors];
+			readyFirst = new KThread[numProcessors];
+			readyLast = new KThread[numProcessors];
+			numReady = new int[numProcessors];
+			runningThreads = new KThread[numProcessors];
+			idleThreads = new KThread[numProcessors];
+			for (int i = 0; i < numProcessors; i++)
+				readyQueues[i] = ThreadedKernel.scheduler.newThreadQueue(false);
+			readyQueues[0].acquire(this);
 
 			currentThread = this;
+			runningThreads[0] = this;
 			tcb = TCB.currentTCB();
 			name = "main";
 			restoreState();
 
-			createIdleThread();
+			createIdleThreads();
 		}
 	}
 
@@ -164,6 +192,9 @@ public class KThread {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		if (this != idleThreads[processor])
+			processor = leastLoadedProcessor();
+
 		tcb.start(new Runnable() {
 			public void run() {
 				runThread();
@@ -225,7 +256,8 @@ public class KThread {
 	/**
 	 * Relinquish the CPU if any other thread is ready to run. If so, put the
 	 * current thread on the ready queue, so that it will eventually be
-	 * rescheuled.
+	 * rescheuled. With several processors, this also passes the turn to the
+	 * next processor that has a thread to run.
 	 * 
 	 * <p>
 	 * Returns immediately if no other thread is ready to run. Otherwise returns
@@ -239,7 +271,8 @@ public class KThread {
 	 * called with interrupts disabled.
 	 */
 	public static void yield() {
-		Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
 
 		Lib.assertTrue(currentThread.status == statusRunning);
 
@@ -264,7 +297,8 @@ public class KThread {
 	 * scheduled this thread to be destroyed by the next thread to run.
 	 */
 	public static void sleep() {
-		Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 
@@ -279,14 +313,19 @@ public class KThread {
 	 * ready queue.
 	 */
 	public void ready() {
-		Lib.debug(dbgThread, "Ready thread: " + toString());
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Ready thread: " + toString());
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
-			readyQueue.waitForAccess(this);
+		if (this != idleThreads[processor]) {
+			readyQueues[processor].waitForAccess(this);
+			link();
+			if (this != currentThread && ThreadedKernel.alarm != null)
+				ThreadedKernel.alarm.threadReady();
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -314,40 +353,217 @@ public class KThread {
 	}
 
 	/**
-	 * Create the idle thread. Whenever there are no threads ready to be run,
-	 * and <tt>runNextThread()</tt> is called, it will run the idle thread. The
-	 * idle thread must never block, and it will only be allowed to run when all
-	 * other threads are blocked.
+	 * Create the idle threads, one per processor. Whenever a processor has no
+	 * thread ready to run, and <tt>runNextThread()</tt> is called, it will run
+	 * its idle thread. An idle thread must never block, and it will only be
+	 * allowed to run when all other threads are blocked.
 	 * 
 	 * <p>
-	 * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+	 * Rather than spinning through <tt>yield()</tt> one tick at a time, the
+	 * idle thread advances simulated time directly to the next pending
+	 * interrupt, which is the earliest moment another thread can become ready.
+	 * 
+	 * <p>
+	 * Note that <tt>ready()</tt> never adds an idle thread to the ready set.
 	 */
-	private static void createIdleThread() {
-		Lib.assertTrue(idleThread == null);
+	private static void createIdleThreads() {
+		for (int i = 0; i < numProcessors; i++) {
+			Lib.assertTrue(idleThreads[i] == null);
+
+			KThread idleThread = new KThread(new Runnable() {
+				public void run() {
+					while (true) {
+						Machine.interrupt().idle();
+						yield();
+					}
+				}
+			});
+			idleThread.setName(numProcessors == 1 ? "idle" : "idle " + i);
+			idleThread.processor = i;
+			idleThreads[i] = idleThread;
+			if (runningThreads[i] == null)
+				runningThreads[i] = idleThread;
+
+			Machine.autoGrader().setIdleThread(idleThread);
+
+			idleThread.fork();
+		}
+	}
 
-		idleThread = new KThread(new Runnable() {
-			public void run() {
-				while (true)
-					yield();
+	/**
+	 * Determine the next thread to run on the current processor. Then pass the
+	 * turn to the next processor, in order, that has a thread to run, if there
+	 * is one, and dispatch the CPU to its thread using <tt>run()</tt>. Only if
+	 * no processor has anything to run does an idle thread run.
+	 */
+	private static void runNextThread() {
+		runningThreads[currentProcessor] = pickThread(currentProcessor);
+
+		for (int i = 1; i < numProcessors; i++) {
+			int processor = (currentProcessor + i) % numProcessors;
+			if (runningThreads[processor] == idleThreads[processor])
+				runningThreads[processor] = pickThread(processor);
+			if (runningThreads[processor] != idleThreads[processor]) {
+				currentProcessor = processor;
+				break;
 			}
-		});
-		idleThread.setName("idle");
+		}
 
-		Machine.autoGrader().setIdleThread(idleThread);
+		runningThreads[currentProcessor].run();
+	}
+
+	/**
+	 * Choose the thread the specified processor should run next: the next
+	 * thread on its own ready queue, or else a thread stolen from the busiest
+	 * processor, or else its idle thread.
+	 */
+	private static KThread pickThread(int processor) {
+		KThread thread = readyQueues[processor].nextThread();
+		if (thread != null)
+			thread.unlink();
+		else
+			thread = steal(processor);
 
-		idleThread.fork();
+		return (thread != null) ? thread : idleThreads[processor];
 	}
 
 	/**
-	 * Determine the next thread to run, then dispatch the CPU to the thread
-	 * using <tt>run()</tt>.
+	 * Take the thread that started waiting most recently on the processor with
+	 * the longest ready queue, and move it to the specified processor, which
+	 * has nothing to run.
 	 */
-	private static void runNextThread() {
-		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
-			nextThread = idleThread;
+	private static KThread steal(int processor) {
+		int busiest = processor;
+		for (int i = 0; i < numProcessors; i++) {
+			if (numReady[i] > numReady[busiest])
+				busiest = i;
+		}
+		if (busiest == processor)
+			return null;
+
+		KThread thread = readyLast[busiest];
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Processor " + processor
+					+ " stealing thread: " + thread.toString()
+					+ " from processor " + busiest);
+		boolean removed = readyQueues[busiest].remove(thread);
+		Lib.assertTrue(removed);
+		thread.unlink();
+		thread.processor = processor;
+		return thread;
+	}
+
+	/**
+	 * Move a thread that is waiting on the ready queue of one processor to the
+	 * ready queue of another. The thread is taken off its queue with
+	 * <tt>remove()</tt>, so the queue it leaves does not treat the move as a
+	 * dispatch.
+	 */
+	private void migrate(int processor) {
+		Lib.assertTrue(status == statusReady && processor != this.processor);
+
+		boolean removed = readyQueues[this.processor].remove(this);
+		Lib.assertTrue(removed);
+		unlink();
+		this.processor = processor;
+		readyQueues[processor].waitForAccess(this);
+		link();
+	}
+
+	/**
+	 * Add this thread, which has just been put on the ready queue of its
+	 * processor, to the end of that processor's list of waiting threads.
+	 */
+	private void link() {
+		readyPrev = readyLast[processor];
+		readyNext = null;
+		if (readyPrev != null)
+			readyPrev.readyNext = this;
+		else
+			readyFirst[processor] = this;
+		readyLast[processor] = this;
+		numReady[processor]++;
+	}
+
+	/**
+	 * Take this thread, which has just left the ready queue of its processor,
+	 * off that processor's list of waiting threads.
+	 */
+	private void unlink() {
+		if (readyPrev != null)
+			readyPrev.readyNext = readyNext;
+		else
+			readyFirst[processor] = readyNext;
+		if (readyNext != null)
+			readyNext.readyPrev = readyPrev;
+		else
+			readyLast[processor] = readyPrev;
+		readyPrev = readyNext = null;
+		numReady[processor]--;
+	}
+
+	/**
+	 * Return the number of threads on the specified processor that are ready
+	 * to run, counting the one it is running unless that is its idle thread.
+	 */
+	private static int load(int processor) {
+		int load = numReady[processor];
+		if (runningThreads[processor] != idleThreads[processor])
+			load++;
+		return load;
+	}
+
+	private static int busiestProcessor() {
+		int busiest = 0;
+		for (int i = 1; i < numProcessors; i++) {
+			if (load(i) > load(busiest))
+				busiest = i;
+		}
+		return busiest;
+	}
+
+	private static int leastLoadedProcessor() {
+		int least = 0;
+		for (int i = 1; i < numProcessors; i++) {
+			if (load(i) < load(least))
+				least = i;
+		}
+		return least;
+	}
+
+	/**
+	 * Test whether any thread other than the current thread is waiting for a
+	 * turn to run: either on a ready queue, or as the running thread of
+	 * another processor.
+	 * 
+	 * @return <tt>true</tt> if another thread is waiting to run.
+	 */
+	public static boolean hasReadyThreads() {
+		for (int i = 0; i < numProcessors; i++) {
+			if (numReady[i] > 0 || (i != currentProcessor
+					&& runningThreads[i] != idleThreads[i]))
+				return true;
+		}
+		return false;
+	}
 
-		nextThread.run();
+	/**
+	 * Even out the load of the simulated processors, by moving waiting threads
+	 * from the busiest processor to the least loaded one until their loads
+	 * differ by at most one. Called on every timer interrupt.
+	 */
+	public static void balanceLoad() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (true) {
+			int busiest = busiestProcessor(), least = leastLoadedProcessor();
+			if (load(busiest) - load(least) <= 1 || numReady[busiest] == 0)
+				break;
+
+			readyLast[busiest].migrate(least);
+		}
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -377,8 +593,9 @@ public class KThread {
 
 		currentThread.saveState();
 
-		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
-				+ " to: " + toString());
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
+					+ " to: " + toString());
 
 		currentThread = this;
 
@@ -392,7 +609,8 @@ public class KThread {
 	 * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
 	 */
 	protected void restoreState() {
-		Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+		if (Lib.test(dbgThread))
+			Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(this == currentThread);
@@ -443,6 +661,100 @@ public class KThread {
 		new KThread(new PingTest(1)).setName("forked thread").fork();
 		new KThread(new PingTest(2)).setName("forked thread").fork();
 		new PingTest(0).run();
+
+		if (numProcessors > 1)
+			testProcessors();
+	}
+
+	/**
+	 * Put a number of busy threads on the ready queue of processor 0 while the
+	 * current thread sleeps, and check that they spread to every processor,
+	 * that all of the processors are busy at once, and that the thread that
+	 * executes is always the running thread of the current processor.
+	 */
+	private static void testProcessors() {
+		final int numThreads = 2 * numProcessors;
+		final boolean[] ranOn = new boolean[numProcessors];
+		final int[] maxBusy = new int[1];
+		final boolean[] done = new boolean[1];
+
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					while (!done[0]) {
+						Machine.interrupt().disable();
+						int processor = currentThread.processor;
+						Lib.assertTrue(processor == currentProcessor
+								&& runningThreads[processor] == currentThread);
+						ranOn[processor] = true;
+						int busy = 0;
+						for (int j = 0; j < numProcessors; j++) {
+							if (runningThreads[j] != idleThreads[j])
+								busy++;
+						}
+						maxBusy[0] = Math.max(maxBusy[0], busy);
+						Machine.interrupt().enable();
+					}
+				}
+			}).setName("busy thread " + i);
+			threads[i].fork();
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+		for (KThread thread : threads) {
+			if (thread.status == statusReady && thread.processor != 0
+					&& runningThreads[thread.processor] != thread)
+				thread.migrate(0);
+		}
+		Machine.interrupt().restore(intStatus);
+
+		ThreadedKernel.alarm.waitUntil(20000);
+		done[0] = true;
+		for (KThread thread : threads)
+			thread.join();
+
+		for (int i = 0; i < numProcessors; i++)
+			Lib.assertTrue(ranOn[i]);
+		Lib.assertTrue(maxBusy[0] == numProcessors);
+	}
+
+	/**
+	 * Measure the cost of <tt>yield()</tt> by letting two threads yield to each
+	 * other, and print the real time taken by each yield and the number of
+	 * context switches between them.
+	 */
+	public static void benchmark() {
+		final int numYields = 20000;
+		final int[] numSwitches = new int[1];
+		final KThread[] last = new KThread[1];
+
+		Runnable pingPong = new Runnable() {
+			public void run() {
+				for (int i = 0; i < numYields; i++) {
+					if (last[0] != currentThread) {
+						last[0] = currentThread;
+						numSwitches[0]++;
+					}
+					KThread.yield();
+				}
+			}
+		};
+		KThread ping = new KThread(pingPong).setName("ping");
+		KThread pong = new KThread(pingPong).setName("pong");
+
+		long start = System.nanoTime();
+		ping.fork();
+		pong.fork();
+		ping.join();
+		pong.join();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("KThread: " + 2 * numYields + " yields in "
+				+ elapsed / 1000000 + " ms (" + elapsed / (2 * numYields)
+				+ " ns/yield, " + numSwitches[0] + " switches) on "
+				+ (TCB.usesVirtualThreads() ? "virtual" : "platform")
+				+ " threads");
 	}
 
 	private static final char dbgThread = 't';
@@ -454,6 +766,27 @@ public class KThread {
 	 */
 	public Object schedulingState = null;
 
+	/**
+	 * Additional state used by the alarm.
+	 * 
+	 * @see nachos.threads.Alarm#waitUntil
+	 */
+	public Object alarmState = null;
+
+	/**
+	 * The semaphore this thread sleeps on in a <tt>Condition</tt>, created the
+	 * first time it sleeps and reused after that. Its value is 0 whenever the
+	 * thread is not sleeping on a condition variable.
+	 * 
+	 * @see nachos.threads.Condition#sleep
+	 */
+	Semaphore parkSemaphore = null;
+
+	/**
+	 * The next thread sleeping on the same <tt>Condition</tt> as this thread.
+	 */
+	KThread nextWaiter = null;
+
 	private static final int statusNew = 0;
 	private static final int statusReady = 1;
 	private static final int statusRunning = 2;
@@ -478,10 +811,32 @@ public class KThread {
 	/** Number of times the KThread constructor was called. */
 	private static int numCreated = 0;
 
-	private static ThreadQueue readyQueue = null;
+	/**
+	 * The simulated processor whose ready queue this thread uses.
+	 */
+	private int processor = 0;
+	/** The neighbours of this thread in the list of its processor. */
+	private KThread readyPrev = null, readyNext = null;
+
+	/**
+	 * Number of simulated processors. Each has its own ready queue, running
+	 * thread and idle thread. Only the running thread of
+	 * <tt>currentProcessor</tt> is executing; the others wait for their turn.
+	 */
+	private static int numProcessors = 1;
+	private static int currentProcessor = 0;
+	private static ThreadQueue[] readyQueues = null;
+	/**
+	 * The threads on each ready queue, in the order they were added, so that
+	 * one can be moved to another processor.
+	 */
+	private static KThread[] readyFirst = null, readyLast = null;
+	private static int[] numReady = null;
+	private static KThread[] runningThreads = null;
+	private static KThread[] idleThreads = null;
+	/** The running thread of <tt>currentProcessor</tt>. */
 	private static KThread currentThread = null;
 	private static KThread toBeDestroyed = null;
-	private static KThread idleThread = null;
 
 	private ThreadQueue joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
 }
@@ -17,12 +17,61 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ * 
+ * <p>
+ * A lock works in one of three modes, chosen when it is created. By default
+ * the mode is given by <tt>Lock.mode</tt>, which is one of:
+ * 
+ * <ul>
+ * <li><tt>handoff</tt>: <tt>release()</tt> gives the lock directly to the
+ * next waiting thread, so waiters acquire it in the order of the wait queue.
+ * <li><tt>barging</tt>: <tt>release()</tt> frees the lock and wakes the next
+ * waiting thread, but any thread that asks for the lock before that thread
+ * runs takes it. This avoids a context switch for every contended release,
+ * at the cost of fairness.
+ * <li><tt>spin</tt>: like <tt>barging</tt>, but a thread that finds the lock
+ * busy first yields up to <tt>Lock.spinYields</tt> times, in the hope that the
+ * holder releases it, before it blocks.
+ * </ul>
+ * 
+ * <p>
+ * In every mode, the threads blocked on a lock donate priority to its holder.
  */
 public class Lock {
 	/**
-	 * Allocate a new lock. The lock will initially be <i>free</i>.
+	 * Allocate a new lock in the mode given by <tt>Lock.mode</tt>. The lock
+	 * will initially be <i>free</i>.
 	 */
 	public Lock() {
+		this(parseMode(Config.getString("Lock.mode", "handoff")));
+	}
+
+	/**
+	 * Allocate a new lock in the specified mode. The lock will initially be
+	 * <i>free</i>.
+	 * 
+	 * @param mode
+	 *            <tt>modeHandoff</tt>, <tt>modeBarging</tt> or
+	 *            <tt>modeSpin</tt>.
+	 */
+	public Lock(int mode) {
+		Lib.assertTrue(mode == modeHandoff || mode == modeBarging
+				|| mode == modeSpin);
+		this.mode = mode;
+		spinYields = (mode == modeSpin) ? Config.getInteger("Lock.spinYields",
+				4) : 0;
+	}
+
+	private static int parseMode(String name) {
+		if (name.equals("handoff"))
+			return modeHandoff;
+		if (name.equals("barging"))
+			return modeBarging;
+		if (name.equals("spin"))
+			return modeSpin;
+
+		Lib.assertNotReached("unknown Lock.mode: " + name);
+		return -1;
 	}
 
 	/**
@@ -30,22 +79,69 @@ public class Lock {
 	 * this lock.
 	 */
 	public void acquire() {
+		boolean acquired = acquireBy(Long.MAX_VALUE);
+		Lib.assertTrue(acquired);
+	}
+
+	/**
+	 * Atomically acquire this lock, giving up if it does not become free
+	 * within the specified number of ticks. While the current thread waits, it
+	 * donates priority to the holder as in <tt>acquire()</tt>; the donation is
+	 * withdrawn if it gives up. The current thread must not already hold this
+	 * lock.
+	 * 
+	 * @param timeout
+	 *            the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the lock was acquired, or <tt>false</tt> if the
+	 *         timeout expired first.
+	 */
+	public boolean tryAcquire(long timeout) {
+		return acquireBy(timeout > 0 ? Machine.timer().getTime() + timeout
+				: 0);
+	}
+
+	/**
+	 * Acquire this lock, unless the specified time passes first.
+	 * 
+	 * @param deadline
+	 *            the time at which to give up, or <tt>Long.MAX_VALUE</tt> to
+	 *            wait for as long as it takes.
+	 * @return <tt>true</tt> if the lock was acquired.
+	 */
+	private boolean acquireBy(long deadline) {
 		Lib.assertTrue(!isHeldByCurrentThread());
 
 		boolean intStatus = Machine.interrupt().disable();
 		KThread thread = KThread.currentThread();
 
-		if (lockHolder != null) {
+		for (int i = 0; i < spinYields && lockHolder != null; i++)
+			KThread.yield();
+
+		/*
+		 * In handoff mode, the thread that released the lock has already made
+		 * this thread the holder when it wakes up. Otherwise the lock may have
+		 * been taken again in the meantime, so this thread must check.
+		 */
+		while (lockHolder != null && lockHolder != thread) {
+			if (deadline != Long.MAX_VALUE
+					&& Machine.timer().getTime() >= deadline)
+				break;
+
 			waitQueue.waitForAccess(thread);
-			KThread.sleep();
-		} else {
+			if (deadline == Long.MAX_VALUE)
+				KThread.sleep();
+			else if (!ThreadedKernel.alarm.sleepOn(waitQueue, deadline))
+				break;
+		}
+
+		if (lockHolder == null) {
 			waitQueue.acquire(thread);
 			lockHolder = thread;
 		}
 
-		Lib.assertTrue(lockHolder == thread);
-
+		boolean acquired = (lockHolder == thread);
 		Machine.interrupt().restore(intStatus);
+		return acquired;
 	}
 
 	/**
@@ -56,8 +152,19 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 
-		if ((lockHolder = waitQueue.nextThread()) != null)
-			lockHolder.ready();
+		if (mode == modeHandoff) {
+			if ((lockHolder = waitQueue.nextThread()) != null)
+				lockHolder.ready();
+		} else {
+			/*
+			 * The woken thread holds the wait queue, and so receives the
+			 * donations, until it or another thread takes the lock.
+			 */
+			lockHolder = null;
+			KThread thread = waitQueue.nextThread();
+			if (thread != null)
+				thread.ready();
+		}
 
 		Machine.interrupt().restore(intStatus);
 	}
@@ -71,6 +178,157 @@ public class Lock {
 		return (lockHolder == KThread.currentThread());
 	}
 
+	/**
+	 * Make a sleeping thread wait for this lock, as if it had called
+	 * <tt>acquire()</tt>, without waking it first. The thread will be woken
+	 * when it may take the lock, and must then check whether it already holds
+	 * it. The current thread must hold this lock, with interrupts disabled.
+	 * 
+	 * @param thread
+	 *            the thread to queue for this lock.
+	 */
+	void enqueue(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(isHeldByCurrentThread());
+
+		waitQueue.waitForAccess(thread);
+	}
+
+	/**
+	 * Like <tt>enqueue()</tt>, but move every thread waiting on the specified
+	 * queue at once.
+	 * 
+	 * @param queue
+	 *            the queue of sleeping threads to move to this lock.
+	 */
+	void enqueueAll(ThreadQueue queue) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(isHeldByCurrentThread());
+
+		queue.transferTo(waitQueue);
+	}
+
+	/**
+	 * Let a number of threads increment a shared counter under a lock in each
+	 * mode, preempting them inside and outside the critical section, and
+	 * check that no increment is lost. If the scheduler donates priority, also
+	 * check that a blocked thread donates to the holder in every mode.
+	 */
+	public static void selfTest() {
+		for (int mode = modeHandoff; mode <= modeSpin; mode++) {
+			if (ThreadedKernel.scheduler instanceof PriorityScheduler)
+				testDonation(mode);
+
+			testContention(mode, 20);
+		}
+	}
+
+	/**
+	 * Run a longer counter test than <tt>selfTest()</tt> in each mode, and
+	 * print how often the lock passed from one thread to another and the real
+	 * time the run took under the current scheduler.
+	 */
+	public static void benchmark() {
+		String[] names = { "handoff", "barging", "spin" };
+		StringBuilder results = new StringBuilder();
+		for (int mode = modeHandoff; mode <= modeSpin; mode++) {
+			long start = System.nanoTime();
+			int handovers = testContention(mode, 100);
+			results.append(", " + names[mode] + " " + handovers
+					+ " handovers " + (System.nanoTime() - start) / 1000000
+					+ " ms");
+		}
+
+		System.out.println("Lock: counter under "
+				+ ThreadedKernel.scheduler.getClass().getSimpleName()
+				+ results);
+	}
+
+	private static int testContention(int mode, final int numIncrements) {
+		final int numThreads = 6;
+		final Lock lock = new Lock(mode);
+		final int[] counter = new int[1];
+		final int[] handovers = new int[1];
+		final KThread[] lastHolder = new KThread[1];
+
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < numIncrements; j++) {
+						lock.acquire();
+						if (lastHolder[0] != KThread.currentThread()) {
+							lastHolder[0] = KThread.currentThread();
+							handovers[0]++;
+						}
+						int value = counter[0];
+						for (int k = 0; k < 4; k++) {
+							// a timer interrupt here preempts the holder
+							Machine.interrupt().disable();
+							Machine.interrupt().enable();
+						}
+						counter[0] = value + 1;
+						lock.release();
+
+						Machine.interrupt().disable();
+						Machine.interrupt().enable();
+					}
+				}
+			}).setName("counter " + i);
+		}
+
+		for (KThread thread : threads)
+			thread.fork();
+		for (KThread thread : threads)
+			thread.join();
+
+		Lib.assertTrue(counter[0] == numThreads * numIncrements);
+		return handovers[0];
+	}
+
+	private static void testDonation(int mode) {
+		final Lock lock = new Lock(mode);
+		Scheduler scheduler = ThreadedKernel.scheduler;
+		KThread holder = KThread.currentThread();
+
+		lock.acquire();
+		KThread waiter = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				lock.release();
+			}
+		}).setName("donor");
+
+		boolean intStatus = Machine.interrupt().disable();
+		int priority = scheduler.getPriority(holder);
+		scheduler.setPriority(waiter, PriorityScheduler.priorityMaximum);
+		Machine.interrupt().restore(intStatus);
+
+		waiter.fork();
+
+		boolean donated = false;
+		for (int i = 0; i < 1000 && !donated; i++) {
+			KThread.yield();
+			intStatus = Machine.interrupt().disable();
+			donated = scheduler.getEffectivePriority(holder) > priority;
+			Machine.interrupt().restore(intStatus);
+		}
+		Lib.assertTrue(donated);
+
+		lock.release();
+		waiter.join();
+	}
+
+	/** Hand the lock to the next waiting thread on release. */
+	public static final int modeHandoff = 0;
+	/** Free the lock on release and let any thread take it. */
+	public static final int modeBarging = 1;
+	/** Like <tt>modeBarging</tt>, but yield a few times before blocking. */
+	public static final int modeSpin = 2;
+
+	private final int mode;
+	private final int spinYields;
+
 	private KThread lockHolder = null;
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(true);
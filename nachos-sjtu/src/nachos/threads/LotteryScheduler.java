@@ -3,6 +3,7 @@ package nachos.threads;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -100,84 +101,244 @@ public class LotteryScheduler extends PriorityScheduler {
 		return (LotteryState) kThread.schedulingState;
 	}
 
-	private class LotteryQueue extends PriorityScheduler.PriorityQueue {
+	/**
+	 * Number of ticket transfers started, used to detect cycles of holders.
+	 */
+	private long numTicketWalks = 0;
+
+	protected class LotteryQueue extends PriorityScheduler.PriorityQueue {
 		private Random random = new Random();
-		private LotteryQueue(Boolean transferPriority) {
+		protected LotteryQueue(boolean transferPriority) {
 			super(transferPriority);
 		}
 
 		@Override
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			if (holder != null) {
-				holder.holdList.remove(this);
-			}
+			clearHolder();
 			LotteryState lotteryState = pickNextThread();
 			if (lotteryState != null) {
+				remove(lotteryState);
 				lotteryState.acquire(this);
-				stateQueue.remove(lotteryState);
 				return lotteryState.thread;
 			}
-			holder = null;
 			return null;
 		}
 
+		@Override
+		protected void clearHolder() {
+			if (holder != null) {
+				LotteryState oldHolder = (LotteryState) holder;
+				oldHolder.holdList.remove(this);
+				holder = null;
+				if (transferPriority) {
+					oldHolder.transferTickets(-tickets.getTotal());
+				}
+			}
+		}
+
 		@Override
 		protected LotteryState pickNextThread() {
-			int priority = 0;
-			for (ThreadState threadState : stateQueue) {
-				priority += threadState.getEffectivePriority();
+			long total = tickets.getTotal();
+			if (total == 0) return null;
+			return waiters[tickets.find((random.nextLong() >>> 1) % total)];
+		}
+
+		@Override
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			for (LotteryState lotteryState : waiters) {
+				if (lotteryState != null) {
+					System.out.println("Thread : " + lotteryState.getThread() + " Tickets: "
+							+ lotteryState.getPriority() + " effectiveTickets = " + lotteryState.effectiveTickets);
+				}
 			}
-			if (priority == 0) return null;
-			int c = random.nextInt(priority);
-			for (ThreadState threadState : stateQueue) {
-				int t = threadState.getEffectivePriority();
-				if (c < t) return (LotteryState) threadState;
-				c -= t;
+		}
+
+		protected void add(LotteryState lotteryState) {
+			Lib.assertTrue(lotteryState.slot < 0);
+			if (numFreeSlots == 0) {
+				int capacity = waiters.length;
+				waiters = Arrays.copyOf(waiters, capacity * 2);
+				freeSlots = Arrays.copyOf(freeSlots, capacity * 2);
+				for (int i = capacity * 2 - 1; i >= capacity; i--) {
+					freeSlots[numFreeSlots++] = i;
+				}
+				tickets.grow(waiters);
 			}
-			return null;
+			int slot = freeSlots[--numFreeSlots];
+			waiters[slot] = lotteryState;
+			lotteryState.slot = slot;
+			tickets.add(slot, lotteryState.effectiveTickets);
+		}
+
+		protected void remove(LotteryState lotteryState) {
+			int slot = lotteryState.slot;
+			Lib.assertTrue(slot >= 0 && waiters[slot] == lotteryState);
+			tickets.add(slot, -lotteryState.effectiveTickets);
+			waiters[slot] = null;
+			freeSlots[numFreeSlots++] = slot;
+			lotteryState.slot = -1;
 		}
+
+		/** The waiting threads, indexed by their slot in <tt>tickets</tt>. */
+		private LotteryState[] waiters = new LotteryState[initialSlots];
+		private int[] freeSlots = new int[initialSlots];
+		private int numFreeSlots = initialSlots;
+		{
+			for (int i = 0; i < initialSlots; i++) {
+				freeSlots[i] = initialSlots - 1 - i;
+			}
+		}
+		/** The effective tickets of the waiting threads. */
+		private TicketTree tickets = new TicketTree(initialSlots);
 	}
 
+	private static final int initialSlots = 4;
+
+	/**
+	 * A Fenwick tree over the waiter slots of a lottery queue. Both updating
+	 * the tickets of a slot and finding the slot that holds a given ticket take
+	 * <i>O(log n)</i>. Ticket counts are <tt>long</tt>s, so a queue can hold
+	 * billions of tickets.
+	 */
+	private static class TicketTree {
+		private TicketTree(int capacity) {
+			tree = new long[capacity + 1];
+		}
 
-	private class LotteryState extends PriorityScheduler.ThreadState {
-		private LotteryState(KThread kThread) {
+		private long getTotal() {
+			return total;
+		}
+
+		private void add(int slot, long delta) {
+			total += delta;
+			for (int i = slot + 1; i < tree.length; i += i & -i) {
+				tree[i] += delta;
+			}
+		}
+
+		/**
+		 * Return the slot holding ticket number <i>ticket</i>, counting from 0
+		 * in slot order.
+		 */
+		private int find(long ticket) {
+			Lib.assertTrue(ticket >= 0 && ticket < total);
+			int pos = 0;
+			for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+				if (pos + step < tree.length && tree[pos + step] <= ticket) {
+					pos += step;
+					ticket -= tree[pos];
+				}
+			}
+			return pos;
+		}
+
+		/**
+		 * Rebuild the tree in linear time after the slot array has grown.
+		 */
+		private void grow(LotteryState[] waiters) {
+			tree = new long[waiters.length + 1];
+			for (int i = 1; i < tree.length; i++) {
+				if (waiters[i - 1] != null) {
+					tree[i] += waiters[i - 1].effectiveTickets;
+				}
+				int parent = i + (i & -i);
+				if (parent < tree.length) {
+					tree[parent] += tree[i];
+				}
+			}
+		}
+
+		private long[] tree;
+		private long total = 0;
+	}
+
+	protected class LotteryState extends PriorityScheduler.ThreadState {
+		protected LotteryState(KThread kThread) {
 			super(kThread);
+			effectiveTickets = priority;
 		}
 
 		@Override
 		public void setPriority(int priority) {
+			int delta = priority - this.priority;
 			this.priority = priority;
+			transferTickets(delta);
 		}
 
 		@Override
 		public void waitForAccess(PriorityQueue waitQueue) {
 			boolean status = Machine.interrupt().disable();
-			waitQueue.stateQueue.add(this);
-			belongTo = waitQueue;
+			LotteryQueue lotteryQueue = (LotteryQueue) waitQueue;
+			belongTo = lotteryQueue;
+			lotteryQueue.add(this);
+			if (lotteryQueue.transferPriority && lotteryQueue.holder != null) {
+				((LotteryState) lotteryQueue.holder).transferTickets(effectiveTickets);
+			}
 			Machine.interrupt().restore(status);
 		}
 
+		@Override
+		public boolean stopWaiting(PriorityQueue waitQueue) {
+			LotteryQueue lotteryQueue = (LotteryQueue) waitQueue;
+			if (belongTo != lotteryQueue || slot < 0)
+				return false;
+			lotteryQueue.remove(this);
+			belongTo = null;
+			if (lotteryQueue.transferPriority && lotteryQueue.holder != null) {
+				((LotteryState) lotteryQueue.holder).transferTickets(-effectiveTickets);
+			}
+			return true;
+		}
+
 		@Override
 		public void acquire(PriorityQueue waitQueue) {
 			boolean status = Machine.interrupt().disable();
-			waitQueue.holder = this;
-			holdList.add(waitQueue);
+			LotteryQueue lotteryQueue = (LotteryQueue) waitQueue;
+			lotteryQueue.holder = this;
+			holdList.add(lotteryQueue);
 			belongTo = null;
+			if (lotteryQueue.transferPriority) {
+				transferTickets(lotteryQueue.tickets.getTotal());
+			}
 			Machine.interrupt().restore(status);
 		}
 
 		@Override
 		public int getEffectivePriority() {
-			int ans = priority;
-			for (PriorityQueue priorityQueue : holdList) {
-				if (priorityQueue.transferPriority) {
-					for (ThreadState threadState : priorityQueue.stateQueue) {
-						ans += threadState.getEffectivePriority();
-					}
-				}
+			return (int) Math.min(effectiveTickets, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * Add <i>delta</i> tickets to this thread's effective tickets, and to
+		 * every holder further down the chain of queues this thread is waiting
+		 * on. Tickets add up, so each step only needs the delta. A thread
+		 * reached twice means the holders form a cycle (a deadlock), which
+		 * ends the transfer.
+		 */
+		private void transferTickets(long delta) {
+			if (delta == 0)
+				return;
+			long walk = ++numTicketWalks;
+			LotteryState lotteryState = this;
+			while (lotteryState != null && lotteryState.lastWalk != walk) {
+				lotteryState.lastWalk = walk;
+				lotteryState.effectiveTickets += delta;
+
+				LotteryQueue waitQueue = (LotteryQueue) lotteryState.belongTo;
+				if (waitQueue == null || lotteryState.slot < 0)
+					return;
+				waitQueue.tickets.add(lotteryState.slot, delta);
+				if (!waitQueue.transferPriority)
+					return;
+				lotteryState = (LotteryState) waitQueue.holder;
 			}
-			return ans;
 		}
+
+		/** Own tickets plus all tickets donated through held queues. */
+		protected long effectiveTickets;
+		/** The slot of this thread in <tt>belongTo</tt>, or -1. */
+		private int slot = -1;
 	}
 }
@@ -1,92 +1,197 @@
 package nachos.threads;
 
+import nachos.machine.Config;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.ArrayDeque;
 
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Every thread belongs to one of <tt>MultiLevelScheduler.numLevels</tt>
+ * levels, and starts at level 0. A queue always gives access to the thread
+ * that has waited longest at the lowest non-empty level. A thread that has run
+ * for the quantum of its level (<tt>MultiLevelScheduler.quantum.<i>n</i></tt>
+ * ticks, 1000 ticks doubled at every level by default) moves down one level,
+ * so interactive threads stay ahead of CPU-bound ones.
+ *
+ * <p>
+ * To prevent starvation, all threads are moved back to level 0 every
+ * <tt>MultiLevelScheduler.boostInterval</tt> ticks.
+ */
 public class MultiLevelScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level scheduler, reading the number of levels, the
+     * quanta and the boost interval from the configuration.
+     */
+    public MultiLevelScheduler() {
+        numLevels = Config.getInteger("MultiLevelScheduler.numLevels", 3);
+        Lib.assertTrue(numLevels > 0);
 
+        quantum = new long[numLevels];
+        for (int i = 0; i < numLevels; i++) {
+            quantum[i] = Config.getInteger("MultiLevelScheduler.quantum." + i, 1000 << i);
+        }
+
+        boostInterval = Config.getInteger("MultiLevelScheduler.boostInterval", 20000);
+        Lib.assertTrue(boostInterval > 0);
+    }
 
     @Override
     public ThreadQueue newThreadQueue(boolean transferPriority) {
         return new MultiLevelQueue();
     }
 
-    private class MultiLevelQueue extends ThreadQueue {
-
-        private MultiLevelQueue() {
-            shortQueue = new LinkedList<>();
-            longQueue = new LinkedList<>();
-            startTime = new HashMap<>();
-            endTime = new HashMap<>();
+    private MultiLevelState getThreadState(KThread kThread) {
+        if (kThread.schedulingState == null) {
+            kThread.schedulingState = new MultiLevelState();
         }
+        return (MultiLevelState) kThread.schedulingState;
+    }
 
-        private boolean isShort(KThread kThread) {
-            if (kThread == null) {
-                return false;
-            }
-            if (!startTime.containsKey(kThread) || !endTime.containsKey(kThread)) {
-                return false;
+    /**
+     * Return the number of boost intervals since Nachos started.
+     */
+    private long currentEpoch() {
+        return Machine.timer().getTime() / boostInterval;
+    }
+
+    /**
+     * Charge the ticks since the last charge to the current thread, moving it
+     * down a level when it has used up its quantum. Since the processor only
+     * changes hands right after <tt>nextThread()</tt> with interrupts
+     * disabled, the elapsed time always belongs to the current thread.
+     */
+    private void chargeCurrentThread() {
+        long now = Machine.timer().getTime();
+        MultiLevelState state = getThreadState(KThread.currentThread());
+        state.refresh(currentEpoch());
+        state.used += now - lastCharge;
+        lastCharge = now;
+        if (state.used >= quantum[state.level]) {
+            if (state.level < numLevels - 1) {
+                state.level++;
             }
-            Long s = startTime.get(kThread);
-            Long e = endTime.get(kThread);
-            return e - s < 1000;
+            state.used = 0;
         }
+    }
 
-        private boolean isLong(KThread kThread) {
-            if (kThread == null) {
-                return false;
-            }
-            if (!startTime.containsKey(kThread) || !endTime.containsKey(kThread)) {
-                return true;
+    private class MultiLevelQueue extends ThreadQueue {
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private MultiLevelQueue() {
+            levels = new ArrayDeque[numLevels];
+            for (int i = 0; i < numLevels; i++) {
+                levels[i] = new ArrayDeque<>();
             }
-            Long s = startTime.get(kThread);
-            Long e = endTime.get(kThread);
-            return e - s >= 1000;
+            epoch = currentEpoch();
         }
 
         @Override
         public void waitForAccess(KThread thread) {
             Lib.assertTrue(Machine.interrupt().disabled());
-            if (isShort(thread)) shortQueue.add(thread);
-            if (isLong(thread)) longQueue.add(thread);
+            chargeCurrentThread();
+            boost();
+            MultiLevelState state = getThreadState(thread);
+            state.refresh(epoch);
+            levels[state.level].add(thread);
         }
 
         @Override
         public KThread nextThread() {
             Lib.assertTrue(Machine.interrupt().disabled());
-            KThread kThread = KThread.currentThread();
-            Long t = Machine.timer().getTime();
-            if (kThread != null) {
-                endTime.put(kThread, t);
-            }
-            KThread ret = null;
-            if (!shortQueue.isEmpty()) {
-                ret = shortQueue.removeFirst();
-            } else if (!longQueue.isEmpty()) {
-                ret = longQueue.removeFirst();
-            }
-            if (ret != null) {
-                startTime.put(ret, t);
+            chargeCurrentThread();
+            boost();
+            for (ArrayDeque<KThread> level : levels) {
+                if (!level.isEmpty()) {
+                    return level.removeFirst();
+                }
             }
-            return ret;
+            return null;
         }
 
         @Override
         public void acquire(KThread thread) {
             Lib.assertTrue(Machine.interrupt().disabled());
-            Lib.assertTrue(shortQueue.isEmpty() && longQueue.isEmpty());
+        }
+
+        @Override
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            // the level of a waiting thread may have changed since it was added
+            for (ArrayDeque<KThread> level : levels) {
+                if (level.remove(thread)) {
+                    return true;
+                }
+            }
+            return false;
         }
 
         @Override
         public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            for (int i = 0; i < numLevels; i++) {
+                System.out.print("level " + i + ":");
+                for (KThread thread : levels[i]) {
+                    System.out.print(" " + thread);
+                }
+                System.out.println();
+            }
+        }
 
+        /**
+         * If a boost interval has passed since this queue was last used, move
+         * every waiting thread up to level 0, keeping them in level order.
+         */
+        private void boost() {
+            long now = currentEpoch();
+            if (now == epoch) {
+                return;
+            }
+            epoch = now;
+            for (int i = 1; i < numLevels; i++) {
+                while (!levels[i].isEmpty()) {
+                    KThread thread = levels[i].removeFirst();
+                    getThreadState(thread).refresh(epoch);
+                    levels[0].add(thread);
+                }
+            }
+        }
+
+        private ArrayDeque<KThread>[] levels;
+        private long epoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level and how much of that
+     * level's quantum it has used.
+     *
+     * @see nachos.threads.KThread#schedulingState
+     */
+    private static class MultiLevelState {
+        /**
+         * Move this thread back to level 0 if a boost has happened since its
+         * state was last updated.
+         */
+        private void refresh(long currentEpoch) {
+            if (epoch != currentEpoch) {
+                epoch = currentEpoch;
+                level = 0;
+                used = 0;
+            }
         }
 
-        LinkedList<KThread> shortQueue, longQueue;
-        Map<KThread, Long> startTime, endTime;
+        private int level = 0;
+        private long used = 0;
+        private long epoch = 0;
     }
+
+    private final int numLevels;
+    private final long[] quantum;
+    private final long boostInterval;
+
+    /** The time up to which the running threads have been charged. */
+    private long lastCharge = 0;
 }
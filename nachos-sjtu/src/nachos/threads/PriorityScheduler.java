@@ -3,7 +3,10 @@ package nachos.threads;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -99,6 +102,109 @@ public class PriorityScheduler extends Scheduler {
 		return true;
 	}
 
+	/**
+	 * Check, if the current scheduler is a priority scheduler, that raising
+	 * the priority of the thread at the end of a chain of nested locks is
+	 * donated through the whole chain, and that lowering it again withdraws
+	 * the donation. The threads used here are never forked.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof PriorityScheduler))
+			return;
+
+		Scheduler scheduler = ThreadedKernel.scheduler;
+		boolean intStatus = Machine.interrupt().disable();
+
+		final int chainDepth = 8;
+		KThread[] chain = lockChain(chainDepth);
+		// a lottery scheduler adds up donations rather than taking the maximum
+		int before = scheduler.getEffectivePriority(chain[0]);
+		scheduler.setPriority(chain[chainDepth], priorityMaximum);
+		int raised = scheduler.getEffectivePriority(chain[0]);
+		Lib.assertTrue(raised > before && raised >= priorityMaximum);
+		scheduler.setPriority(chain[chainDepth], priorityDefault);
+		Lib.assertTrue(scheduler.getEffectivePriority(chain[0]) == before);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Stress the donation engine, if the current scheduler is a priority
+	 * scheduler. The threads used here are never forked; they only exist to
+	 * hold and wait on queues.
+	 *
+	 * <p>
+	 * The first measurement toggles the priority of the thread at the end of a
+	 * chain of <tt>chainDepth</tt> nested locks, so every toggle is donated
+	 * through the whole chain. The second passes a lock around a ring of
+	 * waiters of increasing size; the cost of a release should grow with the
+	 * logarithm of the number of waiters, not linearly.
+	 */
+	public static void benchmark() {
+		if (!(ThreadedKernel.scheduler instanceof PriorityScheduler))
+			return;
+
+		Scheduler scheduler = ThreadedKernel.scheduler;
+		boolean intStatus = Machine.interrupt().disable();
+
+		final int chainDepth = 128;
+		KThread[] chain = lockChain(chainDepth);
+
+		final int rounds = 2000;
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			scheduler.setPriority(chain[chainDepth],
+					(i & 1) == 0 ? priorityMaximum : priorityDefault);
+			Lib.assertTrue((i & 1) == 1
+					|| scheduler.getEffectivePriority(chain[0]) >= priorityMaximum);
+		}
+		System.out.println("PriorityScheduler: donation through " + chainDepth
+				+ " locks: " + (System.nanoTime() - start) / rounds + " ns");
+
+		for (int waiters = 16; waiters <= 1024; waiters *= 8) {
+			ThreadQueue lock = scheduler.newThreadQueue(true);
+			KThread holder = new KThread().setName("ring holder");
+			lock.acquire(holder);
+			for (int i = 0; i < waiters; i++) {
+				lock.waitForAccess(new KThread().setName("ring " + i));
+			}
+
+			start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				KThread next = lock.nextThread();
+				lock.waitForAccess(holder);
+				holder = next;
+			}
+			System.out.println("PriorityScheduler: release with " + waiters
+					+ " waiters: " + (System.nanoTime() - start) / rounds + " ns");
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return <i>depth</i> + 1 new threads, each holding a new lock that the
+	 * next one waits on. A thread stops waiting when it acquires a queue, so
+	 * every lock is acquired before any thread starts waiting.
+	 */
+	private static KThread[] lockChain(int depth) {
+		Scheduler scheduler = ThreadedKernel.scheduler;
+
+		KThread[] chain = new KThread[depth + 1];
+		for (int i = 0; i <= depth; i++) {
+			chain[i] = new KThread().setName("chain " + i);
+		}
+		ThreadQueue[] locks = new ThreadQueue[depth];
+		for (int i = 0; i < depth; i++) {
+			locks[i] = scheduler.newThreadQueue(true);
+			locks[i].acquire(chain[i]);
+		}
+		for (int i = 0; i < depth; i++) {
+			locks[i].waitForAccess(chain[i + 1]);
+		}
+		return chain;
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -112,6 +218,16 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public static final int priorityMaximum = 7;
 
+	/**
+	 * Number of times a thread has started waiting on one of this scheduler's
+	 * queues. Used to break ties between threads of equal priority.
+	 */
+	private long numWaits = 0;
+	/**
+	 * Number of donation walks started, used to detect cycles of holders.
+	 */
+	private long numDonationWalks = 0;
+
 	/**
 	 * Return the scheduling state of the specified thread.
 	 *
@@ -141,49 +257,71 @@ public class PriorityScheduler extends Scheduler {
 
 		public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			getThreadState(thread).acquire(this);
+			ThreadState threadState = getThreadState(thread);
+			if (holder == threadState)
+				return;
+			clearHolder();
+			threadState.acquire(this);
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			return getThreadState(thread).stopWaiting(this);
 		}
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			if (holder != null) {
-				holder.holdList.remove(this);
-				holder.calcEffectivePriority();
-			}
+			clearHolder();
 			ThreadState threadState = pickNextThread();
 			if (threadState != null) {
-				threadState.acquire(this);
 				stateQueue.remove(threadState);
+				updateDonation();
+				threadState.acquire(this);
 				return threadState.thread;
 			}
-			holder = null;
 			return null;
 		}
 
 		/**
-		 * Return the next thread that <tt>nextThread()</tt> would return,
-		 * without modifying the state of this queue.
-		 *
-		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 * Take this queue away from its holder, if any, and withdraw the
+		 * donation the holder received through it.
 		 */
+		protected void clearHolder() {
+			if (holder != null) {
+				ThreadState oldHolder = holder;
+				oldHolder.holdList.remove(this);
+				holder = null;
+				oldHolder.updateEffectivePriority();
+			}
+		}
 
-		private ThreadState getSuperior(ThreadState x, ThreadState y) {
-			Lib.assertTrue(x != null);
-			if (y == null) return x;
-			if (x.effectivePriority > y.effectivePriority ||
-					x.effectivePriority == y.effectivePriority && x.enterTime < y.enterTime) {
-				return x;
+		/**
+		 * Recompute the priority this queue donates to its holder, which is
+		 * the effective priority of its best waiter if this queue transfers
+		 * priority.
+		 *
+		 * @return <tt>true</tt> if the donation changed.
+		 */
+		protected boolean updateDonation() {
+			int p = priorityMinimum;
+			if (transferPriority && !stateQueue.isEmpty()) {
+				p = stateQueue.peek().effectivePriority;
 			}
-			return y;
+			if (p == donation)
+				return false;
+			donation = p;
+			return true;
 		}
 
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 *
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
 		protected ThreadState pickNextThread() {
-			ThreadState ret = null;
-			for (ThreadState threadState : stateQueue) {
-				ret = getSuperior(threadState, ret);
-			}
-			return ret;
+			return stateQueue.peek();
 		}
 
 		public void print() {
@@ -200,7 +338,133 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		protected boolean transferPriority;
 		protected ThreadState holder = null;
-		protected LinkedList<ThreadState> stateQueue = new LinkedList<>();
+		protected ThreadStateHeap stateQueue = new ThreadStateHeap();
+		/** The cached maximum effective priority donated by the waiters. */
+		protected int donation = priorityMinimum;
+	}
+
+	/**
+	 * An indexed binary max-heap of waiting threads, ordered by effective
+	 * priority and then by the order in which they started waiting. Every
+	 * <tt>ThreadState</tt> remembers its slot in the heap, so removing a
+	 * waiter or repositioning it after its effective priority changed costs
+	 * <i>O(log n)</i> instead of a scan of the queue.
+	 */
+	protected class ThreadStateHeap implements Iterable<ThreadState> {
+		/**
+		 * Test whether <i>x</i> should leave the queue before <i>y</i>.
+		 */
+		protected boolean isSuperior(ThreadState x, ThreadState y) {
+			return x.effectivePriority > y.effectivePriority ||
+					x.effectivePriority == y.effectivePriority && x.enterTime < y.enterTime;
+		}
+
+		public boolean isEmpty() {
+			return size == 0;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Return the superior thread state, or <tt>null</tt> if the heap is
+		 * empty.
+		 */
+		public ThreadState peek() {
+			return size == 0 ? null : heap[0];
+		}
+
+		public void add(ThreadState threadState) {
+			Lib.assertTrue(threadState.heapIndex < 0);
+			if (size == heap.length) {
+				heap = Arrays.copyOf(heap, size * 2);
+			}
+			heap[size] = threadState;
+			threadState.heapIndex = size++;
+			siftUp(threadState.heapIndex);
+		}
+
+		public boolean remove(ThreadState threadState) {
+			int i = threadState.heapIndex;
+			if (i < 0 || i >= size || heap[i] != threadState) {
+				return false;
+			}
+			threadState.heapIndex = -1;
+			ThreadState last = heap[--size];
+			heap[size] = null;
+			if (i < size) {
+				heap[i] = last;
+				last.heapIndex = i;
+				update(last);
+			}
+			return true;
+		}
+
+		/**
+		 * Reposition a waiting thread whose effective priority has changed.
+		 */
+		public void update(ThreadState threadState) {
+			int i = threadState.heapIndex;
+			Lib.assertTrue(i >= 0 && i < size && heap[i] == threadState);
+			if (i > 0 && isSuperior(threadState, heap[(i - 1) / 2])) {
+				siftUp(i);
+			} else {
+				siftDown(i);
+			}
+		}
+
+		private void siftUp(int i) {
+			ThreadState x = heap[i];
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (!isSuperior(x, heap[parent]))
+					break;
+				heap[i] = heap[parent];
+				heap[i].heapIndex = i;
+				i = parent;
+			}
+			heap[i] = x;
+			x.heapIndex = i;
+		}
+
+		private void siftDown(int i) {
+			ThreadState x = heap[i];
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && isSuperior(heap[child + 1], heap[child]))
+					child++;
+				if (!isSuperior(heap[child], x))
+					break;
+				heap[i] = heap[child];
+				heap[i].heapIndex = i;
+				i = child;
+			}
+			heap[i] = x;
+			x.heapIndex = i;
+		}
+
+		@Override
+		public Iterator<ThreadState> iterator() {
+			return new Iterator<ThreadState>() {
+				public boolean hasNext() {
+					return next < size;
+				}
+
+				public ThreadState next() {
+					if (next >= size)
+						throw new NoSuchElementException();
+					return heap[next++];
+				}
+
+				private int next = 0;
+			};
+		}
+
+		private ThreadState[] heap = new ThreadState[4];
+		private int size = 0;
 	}
 
 	/**
@@ -249,27 +513,38 @@ public class PriorityScheduler extends Scheduler {
 			return effectivePriority;
 		}
 
-		protected void updateEffectivePriority(int p) {
-			if (p > effectivePriority) {
-				effectivePriority = p;
-				if (belongTo != null && belongTo.holder != null) {
-					belongTo.holder.updateEffectivePriority(p);
-				}
-			}
-		}
-
-		protected void calcEffectivePriority() {
-			int t = effectivePriority;
-			effectivePriority = priority;
-			for (PriorityQueue priorityQueue : holdList) {
-				if (priorityQueue.transferPriority) {
-					for (ThreadState threadState : priorityQueue.stateQueue) {
-						effectivePriority = Math.max(effectivePriority, threadState.getEffectivePriority());
-					}
-				}
-				if (t != effectivePriority && belongTo != null && belongTo.holder != null) {
-					belongTo.holder.calcEffectivePriority();
+		/**
+		 * Recompute the effective priority of this thread from its own
+		 * priority and the cached donations of the queues it holds, and push
+		 * any change along the chain of holders this thread is waiting for.
+		 *
+		 * <p>
+		 * The walk is iterative and stops as soon as a thread's effective
+		 * priority, or the donation of the queue it waits on, is unchanged. A
+		 * thread reached twice in the same walk means the holders form a
+		 * cycle (a deadlock), which also ends the walk.
+		 */
+		protected void updateEffectivePriority() {
+			long walk = ++numDonationWalks;
+			ThreadState threadState = this;
+			while (threadState != null && threadState.lastWalk != walk) {
+				threadState.lastWalk = walk;
+
+				int p = threadState.priority;
+				for (int i = 0; i < threadState.holdList.size(); i++) {
+					p = Math.max(p, threadState.holdList.get(i).donation);
 				}
+				if (p == threadState.effectivePriority)
+					return;
+				threadState.effectivePriority = p;
+
+				PriorityQueue waitQueue = threadState.belongTo;
+				if (waitQueue == null || threadState.heapIndex < 0)
+					return;
+				waitQueue.stateQueue.update(threadState);
+				if (!waitQueue.updateDonation())
+					return;
+				threadState = waitQueue.holder;
 			}
 		}
 
@@ -282,13 +557,8 @@ public class PriorityScheduler extends Scheduler {
 		public void setPriority(int priority) {
 			if (this.priority == priority)
 				return;
-			int t = this.priority;
 			this.priority = priority;
-			if (t == effectivePriority) {
-				calcEffectivePriority();
-			} else if (priority > t) {
-				updateEffectivePriority(priority);
-			}
+			updateEffectivePriority();
 		}
 
 		/**
@@ -305,15 +575,38 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
 			boolean status = Machine.interrupt().disable();
-			waitQueue.stateQueue.add(this);
 			belongTo = waitQueue;
-			enterTime = Machine.timer().getTime();
-			if (belongTo.holder != null) {
-				belongTo.holder.updateEffectivePriority(effectivePriority);
+			enterTime = numWaits++;
+			waitQueue.stateQueue.add(this);
+			if (waitQueue.updateDonation() && waitQueue.holder != null) {
+				waitQueue.holder.updateEffectivePriority();
 			}
 			Machine.interrupt().setStatus(status);
 		}
 
+		/**
+		 * Called when the associated thread gives up waiting on the specified
+		 * priority queue. Its donation is withdrawn from the holder of the
+		 * queue.
+		 *
+		 * @param waitQueue
+		 *            the queue that the associated thread no longer waits on.
+		 * @return <tt>true</tt> if the associated thread was waiting on
+		 *         <tt>waitQueue</tt>.
+		 *
+		 * @see nachos.threads.ThreadQueue#remove
+		 */
+		public boolean stopWaiting(PriorityQueue waitQueue) {
+			if (belongTo != waitQueue || heapIndex < 0)
+				return false;
+			waitQueue.stateQueue.remove(this);
+			belongTo = null;
+			if (waitQueue.updateDonation() && waitQueue.holder != null) {
+				waitQueue.holder.updateEffectivePriority();
+			}
+			return true;
+		}
+
 		/**
 		 * Called when the associated thread has acquired access to whatever is
 		 * guarded by <tt>waitQueue</tt>. This can occur either as a result of
@@ -329,7 +622,7 @@ public class PriorityScheduler extends Scheduler {
 			waitQueue.holder = this;
 			holdList.add(waitQueue);
 			belongTo = null;
-			calcEffectivePriority();
+			updateEffectivePriority();
 			Machine.interrupt().restore(status);
 		}
 
@@ -337,9 +630,14 @@ public class PriorityScheduler extends Scheduler {
 		protected KThread thread;
 		/** The priority of the associated thread. */
 		int priority = priorityDefault;
-		int effectivePriority;
-		LinkedList<PriorityQueue> holdList = new LinkedList<>();
+		int effectivePriority = priorityDefault;
+		ArrayList<PriorityQueue> holdList = new ArrayList<>();
 		PriorityQueue belongTo;
+		/** Logical time at which this thread began waiting on <tt>belongTo</tt>. */
 		long enterTime;
+		/** The slot of this thread in <tt>belongTo.stateQueue</tt>, or -1. */
+		int heapIndex = -1;
+		/** The donation walk that last visited this thread. */
+		long lastWalk = 0;
 	}
 }
@@ -37,7 +37,19 @@ public class RandomScheduler extends Scheduler {
         @Override
         public void acquire(KThread thread) {
             Lib.assertTrue(Machine.interrupt().disabled());
-            Lib.assertTrue(waitSet.isEmpty());
+        }
+
+        @Override
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (HashThread hashThread : waitSet) {
+                if (hashThread.kThread == thread) {
+                    waitSet.remove(hashThread);
+                    return true;
+                }
+            }
+            return false;
         }
 
         @Override
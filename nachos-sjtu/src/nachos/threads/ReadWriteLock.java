@@ -0,0 +1,434 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that any number of threads may hold for
+ * reading at once, but only one thread may hold for writing, and then only
+ * while no thread holds it for reading.
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, threads that ask to read
+ * wait behind it, so a steady stream of readers cannot keep a writer out. By
+ * default, a writer that releases the lock also hands it to the next waiting
+ * writer before any waiting reader. A <i>fair</i> lock instead lets all of
+ * the readers that are waiting at that point in first, so that neither readers
+ * nor writers can be starved.
+ *
+ * <p>
+ * The threads waiting for the lock donate priority to the thread holding it
+ * for writing. Threads holding it for reading receive no donation, because
+ * there may be more than one of them.
+ *
+ * <p>
+ * The lock is handed over on release, as with a <tt>Lock</tt> in handoff mode:
+ * a thread woken from waiting already holds the lock.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new readers-writer lock that prefers writers. The lock will
+	 * initially be <i>free</i>.
+	 */
+	public ReadWriteLock() {
+		this(false);
+	}
+
+	/**
+	 * Allocate a new readers-writer lock. The lock will initially be
+	 * <i>free</i>.
+	 *
+	 * @param fair
+	 *            <tt>true</tt> if a writer that releases the lock should hand
+	 *            it to the waiting readers before the next writer.
+	 */
+	public ReadWriteLock(boolean fair) {
+		this.fair = fair;
+	}
+
+	/**
+	 * Atomically acquire this lock for reading. The current thread must not
+	 * hold this lock for writing.
+	 */
+	public void acquireRead() {
+		Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (writer != null || waitingWriters > 0) {
+			waitingReaders++;
+			readQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		} else {
+			readers++;
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically release this lock for reading. The current thread must hold
+	 * this lock for reading.
+	 */
+	public void releaseRead() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(readers > 0);
+		if (--readers == 0 && waitingWriters > 0)
+			grantWrite();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically acquire this lock for writing. The current thread must not
+	 * hold this lock.
+	 */
+	public void acquireWrite() {
+		Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer != null || readers > 0) {
+			waitingWriters++;
+			writeQueue.waitForAccess(thread);
+			KThread.sleep();
+		} else {
+			writer = thread;
+			writeQueue.acquire(thread);
+			readQueue.acquire(thread);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically release this lock for writing. The current thread must hold
+	 * this lock for writing.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		writer = null;
+		if (waitingWriters > 0 && !(fair && waitingReaders > 0)) {
+			grantWrite();
+		} else {
+			passWriteQueue();
+			grantRead();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically turn the current thread's hold on this lock for writing into
+	 * a hold for reading, so that no writer can get in between. Waiting readers
+	 * are let in as well, unless a writer is waiting and this lock prefers
+	 * writers. The current thread must hold this lock for writing, and must
+	 * later call <tt>releaseRead()</tt>.
+	 */
+	public void downgrade() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		writer = null;
+		readers = 1;
+		passWriteQueue();
+		if (fair || waitingWriters == 0)
+			grantRead();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 *
+	 * @return true if the current thread holds this lock for writing.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return (writer == KThread.currentThread());
+	}
+
+	/**
+	 * Hand the lock to the next waiting writer, which then receives the
+	 * donations of all waiting threads.
+	 */
+	private void grantWrite() {
+		waitingWriters--;
+		writer = (nextWriter != null) ? nextWriter : writeQueue.nextThread();
+		nextWriter = null;
+		readQueue.acquire(writer);
+		writer.ready();
+	}
+
+	/**
+	 * Take the write queue away from the writer that is letting readers in,
+	 * so that it cannot end up waiting on a queue it holds. The queue passes
+	 * to the next waiting writer, if any, which will get the lock once the
+	 * readers are done.
+	 */
+	private void passWriteQueue() {
+		Lib.assertTrue(nextWriter == null);
+		nextWriter = writeQueue.nextThread();
+	}
+
+	/**
+	 * Hand the lock to all waiting readers. This also takes the read queue
+	 * away from its holder.
+	 */
+	private void grantRead() {
+		KThread thread;
+		while ((thread = readQueue.nextThread()) != null) {
+			readers++;
+			thread.ready();
+		}
+		waitingReaders = 0;
+	}
+
+	/**
+	 * Check that a waiting writer keeps new readers out, that a writer
+	 * releasing a fair lock lets the waiting readers in ahead of the next
+	 * writer while one releasing an unfair lock does not, and that
+	 * <tt>downgrade()</tt> treats waiting readers and writers the same way. If
+	 * the scheduler donates priority, also check that a waiting reader donates
+	 * to the writer.
+	 */
+	public static void selfTest() {
+		for (boolean fair : new boolean[] { false, true }) {
+			Lib.assertTrue(testWriterPreference(fair).equals("wr"));
+			Lib.assertTrue(testRelease(fair).equals(fair ? "rw" : "wr"));
+			Lib.assertTrue(testDowngrade(fair).equals(fair ? "rw" : "wr"));
+		}
+
+		if (ThreadedKernel.scheduler instanceof PriorityScheduler)
+			testDonation();
+	}
+
+	/**
+	 * Compare a <tt>ReadWriteLock</tt> with a plain <tt>Lock</tt> on a table
+	 * that is read 95% of the time, where every access waits for the alarm
+	 * while holding the lock, as a lookup that misses a cache and goes to disk
+	 * would. Prints the simulated time the accesses take with each lock.
+	 */
+	public static void benchmark() {
+		long plain = runWorkload(null);
+		long preferWriters = runWorkload(new ReadWriteLock(false));
+		long fair = runWorkload(new ReadWriteLock(true));
+
+		System.out.println("ReadWriteLock: 95% reads, Lock " + plain
+				+ " ticks, ReadWriteLock " + preferWriters + " ticks, fair "
+				+ fair + " ticks");
+	}
+
+	/**
+	 * Run the workload under the specified lock, or under a plain
+	 * <tt>Lock</tt> if it is <tt>null</tt>, and return the simulated time it
+	 * took.
+	 */
+	private static long runWorkload(final ReadWriteLock rwLock) {
+		final int numThreads = 8, numAccesses = 40;
+		final long accessTicks = 50;
+		final Lock lock = new Lock();
+		// number of threads reading, or -1 while a thread is writing
+		final int[] state = new int[1];
+
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			final int id = i;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < numAccesses; j++) {
+						boolean write = (id * numAccesses + j) % 20 == 0;
+
+						if (rwLock == null)
+							lock.acquire();
+						else if (write)
+							rwLock.acquireWrite();
+						else
+							rwLock.acquireRead();
+
+						Lib.assertTrue(write ? state[0] == 0 : state[0] >= 0);
+						state[0] = write ? -1 : state[0] + 1;
+						ThreadedKernel.alarm.waitUntil(accessTicks);
+						state[0] = write ? 0 : state[0] - 1;
+
+						if (rwLock == null)
+							lock.release();
+						else if (write)
+							rwLock.releaseWrite();
+						else
+							rwLock.releaseRead();
+					}
+				}
+			}).setName("table user " + i);
+		}
+
+		long start = Machine.timer().getTime();
+		for (KThread thread : threads)
+			thread.fork();
+		for (KThread thread : threads)
+			thread.join();
+
+		Lib.assertTrue(state[0] == 0);
+		return Machine.timer().getTime() - start;
+	}
+
+	/**
+	 * While the current thread holds the lock for reading, let a writer and
+	 * then a reader wait for it, and check that the reader waits even though
+	 * the lock is held only for reading. Return the order in which the two
+	 * got the lock.
+	 */
+	private static String testWriterPreference(boolean fair) {
+		ReadWriteLock rwLock = new ReadWriteLock(fair);
+		StringBuffer log = new StringBuffer();
+
+		rwLock.acquireRead();
+		KThread writer = forkUser(rwLock, true, log);
+		awaitWaiting(rwLock, 0, 1);
+		KThread reader = forkUser(rwLock, false, log);
+		awaitWaiting(rwLock, 1, 1);
+		Lib.assertTrue(rwLock.readers == 1 && log.length() == 0);
+		rwLock.releaseRead();
+
+		writer.join();
+		reader.join();
+		return log.toString();
+	}
+
+	/**
+	 * While the current thread holds the lock for writing, let a reader and a
+	 * writer wait for it, then release it. Return the order in which the two
+	 * got the lock.
+	 */
+	private static String testRelease(boolean fair) {
+		ReadWriteLock rwLock = new ReadWriteLock(fair);
+		StringBuffer log = new StringBuffer();
+
+		rwLock.acquireWrite();
+		KThread reader = forkUser(rwLock, false, log);
+		KThread writer = forkUser(rwLock, true, log);
+		awaitWaiting(rwLock, 1, 1);
+		rwLock.releaseWrite();
+
+		writer.join();
+		reader.join();
+		return log.toString();
+	}
+
+	/**
+	 * While the current thread holds the lock for writing, let a reader and a
+	 * writer wait for it, then downgrade to reading and check that the reader
+	 * was let in only if the lock is fair. Return the order in which the two
+	 * got the lock.
+	 */
+	private static String testDowngrade(boolean fair) {
+		ReadWriteLock rwLock = new ReadWriteLock(fair);
+		StringBuffer log = new StringBuffer();
+
+		rwLock.acquireWrite();
+		KThread reader = forkUser(rwLock, false, log);
+		KThread writer = forkUser(rwLock, true, log);
+		awaitWaiting(rwLock, 1, 1);
+		rwLock.downgrade();
+		Lib.assertTrue(rwLock.writer == null
+				&& rwLock.readers == (fair ? 2 : 1));
+		rwLock.releaseRead();
+
+		writer.join();
+		reader.join();
+		return log.toString();
+	}
+
+	/**
+	 * Fork a thread that acquires the lock for reading or writing, appends
+	 * <tt>r</tt> or <tt>w</tt> to the log while holding it, and releases it.
+	 */
+	private static KThread forkUser(final ReadWriteLock rwLock,
+			final boolean write, final StringBuffer log) {
+		KThread thread = new KThread(new Runnable() {
+			public void run() {
+				if (write) {
+					rwLock.acquireWrite();
+					log.append('w');
+					rwLock.releaseWrite();
+				} else {
+					rwLock.acquireRead();
+					log.append('r');
+					rwLock.releaseRead();
+				}
+			}
+		}).setName(write ? "writer" : "reader");
+		thread.fork();
+		return thread;
+	}
+
+	/**
+	 * Yield until the specified numbers of readers and writers are waiting
+	 * for the lock.
+	 */
+	private static void awaitWaiting(ReadWriteLock rwLock, int numReaders,
+			int numWriters) {
+		for (int i = 0; i < 1000; i++) {
+			if (rwLock.waitingReaders == numReaders
+					&& rwLock.waitingWriters == numWriters)
+				return;
+			KThread.yield();
+		}
+		Lib.assertNotReached("threads never waited for the lock");
+	}
+
+	private static void testDonation() {
+		final ReadWriteLock rwLock = new ReadWriteLock();
+		Scheduler scheduler = ThreadedKernel.scheduler;
+		KThread writer = KThread.currentThread();
+
+		rwLock.acquireWrite();
+		KThread reader = new KThread(new Runnable() {
+			public void run() {
+				rwLock.acquireRead();
+				rwLock.releaseRead();
+			}
+		}).setName("reader");
+
+		boolean intStatus = Machine.interrupt().disable();
+		int priority = scheduler.getPriority(writer);
+		scheduler.setPriority(reader, PriorityScheduler.priorityMaximum);
+		Machine.interrupt().restore(intStatus);
+
+		reader.fork();
+
+		boolean donated = false;
+		for (int i = 0; i < 1000 && !donated; i++) {
+			KThread.yield();
+			intStatus = Machine.interrupt().disable();
+			donated = scheduler.getEffectivePriority(writer) > priority;
+			Machine.interrupt().restore(intStatus);
+		}
+		Lib.assertTrue(donated);
+
+		rwLock.downgrade();
+		rwLock.releaseRead();
+		reader.join();
+	}
+
+	private final boolean fair;
+
+	/** The thread holding this lock for writing, or <tt>null</tt>. */
+	private KThread writer = null;
+	/** The number of threads holding this lock for reading. */
+	private int readers = 0;
+	private int waitingReaders = 0;
+	/** The number of waiting writers, including <tt>nextWriter</tt>. */
+	private int waitingWriters = 0;
+	/** The writer to get the lock next, once taken off the write queue. */
+	private KThread nextWriter = null;
+
+	private ThreadQueue readQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+	private ThreadQueue writeQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+}
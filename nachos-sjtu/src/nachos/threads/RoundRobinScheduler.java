@@ -2,7 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
 
 /**
  * A round-robin scheduler tracks waiting threads in FIFO queues, implemented
@@ -59,13 +59,44 @@ public class RoundRobinScheduler extends Scheduler {
 
 		/**
 		 * The specified thread has received exclusive access, without using
-		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
-		 * threads are waiting for access.
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. A FIFO queue does
+		 * not track the holder, so there is nothing to do.
 		 */
 		public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		/**
+		 * Remove a thread from anywhere in the queue.
+		 * 
+		 * @param thread
+		 *            the thread to remove.
+		 * @return <tt>true</tt> if the thread was in the queue.
+		 */
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			return waitQueue.remove(thread);
+		}
+
+		/**
+		 * Move all of the threads in this queue to the end of another queue,
+		 * in order. If the other queue is also a FIFO queue, they are moved
+		 * in one step.
+		 * 
+		 * @param queue
+		 *            the queue to move the threads to.
+		 */
+		public void transferTo(ThreadQueue queue) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (!(queue instanceof FifoQueue)) {
+				super.transferTo(queue);
+				return;
+			}
 
-			Lib.assertTrue(waitQueue.isEmpty());
+			((FifoQueue) queue).waitQueue.addAll(waitQueue);
+			waitQueue.clear();
 		}
 
 		/**
@@ -77,6 +108,6 @@ public class RoundRobinScheduler extends Scheduler {
 			for (KThread aWaitQueue : waitQueue) System.out.print(aWaitQueue + " ");
 		}
 
-		private LinkedList<KThread> waitQueue = new LinkedList<>();
+		private ArrayDeque<KThread> waitQueue = new ArrayDeque<>();
 	}
 }
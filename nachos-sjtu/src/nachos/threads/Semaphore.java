@@ -48,6 +48,34 @@ public class Semaphore {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically wait for this semaphore to become non-zero and decrement it,
+	 * giving up if that takes longer than the specified number of ticks.
+	 * 
+	 * @param timeout
+	 *            the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the semaphore was decremented, or
+	 *         <tt>false</tt> if the timeout expired first.
+	 */
+	public boolean P(long timeout) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean decremented;
+		if (value > 0) {
+			value--;
+			decremented = true;
+		} else if (timeout <= 0) {
+			decremented = false;
+		} else {
+			waitQueue.waitForAccess(KThread.currentThread());
+			decremented = ThreadedKernel.alarm.sleepOn(waitQueue,
+					Machine.timer().getTime() + timeout);
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return decremented;
+	}
+
 	/**
 	 * Atomically increment this semaphore and wake up at most one other thread
 	 * sleeping on this semaphore.
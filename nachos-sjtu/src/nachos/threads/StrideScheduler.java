@@ -0,0 +1,229 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A scheduler that chooses threads using stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and a thread receives access in proportion to its
+ * tickets. Instead of holding a random lottery, every thread advances a
+ * <i>pass</i> value by its <i>stride</i>, which is inversely proportional to
+ * its tickets, each time it is chosen. The thread with the smallest pass is
+ * always chosen next, so the share each thread receives is deterministic.
+ *
+ * <p>
+ * Tickets are transferred through locks and through joins exactly as in a
+ * lottery scheduler: the tickets of waiting threads add to the tickets of the
+ * thread that holds the queue.
+ */
+public class StrideScheduler extends LotteryScheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+		super();
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param transferPriority
+	 *            <tt>true</tt> if this queue should transfer tickets from
+	 *            waiting threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	@Override
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority);
+	}
+
+	@Override
+	protected StrideState getThreadState(KThread kThread) {
+		if (kThread.schedulingState == null) {
+			kThread.schedulingState = new StrideState(kThread);
+		}
+		return (StrideState) kThread.schedulingState;
+	}
+
+	/**
+	 * Check, if the current scheduler is a stride scheduler, that threads
+	 * holding 1 to 7 tickets each get a share of a queue within a few
+	 * dispatches of their share of the tickets.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof StrideScheduler))
+			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		long[] result = shares(new StrideScheduler(), 2800);
+		Lib.assertTrue(result[0] <= numShareThreads);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Compare the share of a queue given to threads holding 1 to 7 tickets
+	 * under a lottery and under a stride scheduler, if the current scheduler
+	 * is a stride scheduler. Prints the largest deviation from the ideal
+	 * number of dispatches and the cost of one dispatch.
+	 */
+	public static void benchmark() {
+		if (!(ThreadedKernel.scheduler instanceof StrideScheduler))
+			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		final int rounds = 28000;
+		String[] names = { "LotteryScheduler", "StrideScheduler" };
+		for (int i = 0; i < names.length; i++) {
+			long[] result = shares(i == 0 ? new LotteryScheduler()
+					: new StrideScheduler(), rounds);
+			System.out.println(names[i] + ": max share error " + result[0]
+					+ " of " + rounds + " dispatches, " + result[1] / rounds
+					+ " ns/dispatch");
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Dispatch threads holding 1 to <tt>numShareThreads</tt> tickets from a
+	 * queue of the specified scheduler.
+	 * 
+	 * @return the largest deviation from the ideal number of dispatches, and
+	 *         the real time the dispatches took in nanoseconds.
+	 */
+	private static long[] shares(Scheduler scheduler, int rounds) {
+		final int numThreads = numShareThreads;
+
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		KThread[] threads = new KThread[numThreads];
+		int[] dispatches = new int[numThreads];
+		int totalTickets = 0;
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread().setName("share " + i);
+			// these threads never run; give them to the scheduler under test
+			threads[i].schedulingState = null;
+			scheduler.setPriority(threads[i], i + 1);
+			totalTickets += i + 1;
+			queue.waitForAccess(threads[i]);
+		}
+
+		long start = System.nanoTime();
+		for (int round = 0; round < rounds; round++) {
+			KThread thread = queue.nextThread();
+			for (int i = 0; i < numThreads; i++) {
+				if (threads[i] == thread)
+					dispatches[i]++;
+			}
+			queue.waitForAccess(thread);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		double maxError = 0;
+		for (int i = 0; i < numThreads; i++) {
+			double ideal = (double) rounds * (i + 1) / totalTickets;
+			maxError = Math.max(maxError, Math.abs(dispatches[i] - ideal));
+		}
+		return new long[] { (long) maxError, elapsed };
+	}
+
+	private static final int numShareThreads = 7;
+
+	/**
+	 * The stride of a thread holding one ticket. The stride of a thread is
+	 * this value divided by its effective tickets.
+	 */
+	private static final long strideOne = 1L << 30;
+
+	/**
+	 * Number of times a thread has started waiting on one of this scheduler's
+	 * queues. Used to break ties between threads with equal passes.
+	 */
+	private long numWaits = 0;
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps its waiters in a min-heap ordered by
+	 * pass, and still tracks their tickets so that they can be transferred to
+	 * the holder.
+	 */
+	protected class StrideQueue extends LotteryQueue {
+		protected StrideQueue(boolean transferPriority) {
+			super(transferPriority);
+			stateQueue = new PassHeap();
+		}
+
+		@Override
+		public KThread nextThread() {
+			KThread thread = super.nextThread();
+			if (thread != null) {
+				StrideState strideState = getThreadState(thread);
+				globalPass = strideState.pass;
+				strideState.pass += strideState.getStride();
+			}
+			return thread;
+		}
+
+		@Override
+		protected StrideState pickNextThread() {
+			return (StrideState) stateQueue.peek();
+		}
+
+		/**
+		 * A thread that starts waiting may not use the time it spent away
+		 * from this queue to get ahead of the threads that stayed, so its pass
+		 * is raised to the pass of the last thread chosen.
+		 */
+		@Override
+		protected void add(LotteryState lotteryState) {
+			super.add(lotteryState);
+			StrideState strideState = (StrideState) lotteryState;
+			strideState.pass = Math.max(strideState.pass, globalPass);
+			strideState.enterTime = numWaits++;
+			stateQueue.add(strideState);
+		}
+
+		@Override
+		protected void remove(LotteryState lotteryState) {
+			super.remove(lotteryState);
+			stateQueue.remove(lotteryState);
+		}
+
+		/** The pass of the last thread chosen from this queue. */
+		private long globalPass = 0;
+	}
+
+	/**
+	 * Orders thread states by pass, then by the order in which they started
+	 * waiting.
+	 */
+	private class PassHeap extends ThreadStateHeap {
+		@Override
+		protected boolean isSuperior(ThreadState x, ThreadState y) {
+			long xPass = ((StrideState) x).pass, yPass = ((StrideState) y).pass;
+			return xPass < yPass || xPass == yPass && x.enterTime < y.enterTime;
+		}
+	}
+
+	protected class StrideState extends LotteryState {
+		protected StrideState(KThread kThread) {
+			super(kThread);
+		}
+
+		/**
+		 * Return the amount by which the pass of this thread advances each
+		 * time it is chosen.
+		 */
+		protected long getStride() {
+			Lib.assertTrue(effectiveTickets > 0);
+			return Math.max(1, strideOne / effectiveTickets);
+		}
+
+		/** The virtual time at which this thread should next be chosen. */
+		protected long pass = 0;
+	}
+}
@@ -1,8 +1,10 @@
 package nachos.threads;
 
+import java.lang.management.ManagementFactory;
 import java.util.LinkedList;
 
 import nachos.machine.Lib;
+import nachos.machine.TCB;
 
 /**
  * A synchronized queue.
@@ -52,34 +54,104 @@ public class SynchList<T> {
 	}
 
 	private static class PingTest implements Runnable {
-		PingTest(SynchList<Integer> ping, SynchList<Integer> pong) {
+		PingTest(SynchList<Integer> ping, SynchList<Integer> pong, int rounds) {
 			this.ping = ping;
 			this.pong = pong;
+			this.rounds = rounds;
 		}
 
 		public void run() {
-			for (int i = 0; i < 10; i++)
+			long bytes = threadAllocatedBytes();
+			for (int i = 0; i < rounds; i++)
 				pong.add(ping.removeFirst());
+			// the thread is gone once it finishes, so sample it here
+			if (bytes >= 0)
+				allocated = threadAllocatedBytes() - bytes;
 		}
 
 		private SynchList<Integer> ping;
 		private SynchList<Integer> pong;
+		private int rounds;
+		/** The bytes this thread allocated in the loop, or -1. */
+		private long allocated = -1;
 	}
 
 	/**
 	 * Test that this module is working.
 	 */
 	public static void selfTest() {
+		pingPong(10);
+	}
+
+	/**
+	 * Measure the memory allocated and the real time taken by each round trip
+	 * of a ping-pong between two threads.
+	 */
+	public static void benchmark() {
+		pingPong(1000);
+
+		int rounds = 10000;
+		long[] result = pingPong(rounds);
+
+		System.out.println("SynchList: " + rounds + " round trips, "
+				+ (result[0] < 0 ? "allocation not measured" : result[0]
+						/ rounds + " bytes/round trip") + ", " + result[1]
+				/ rounds + " ns/round trip");
+	}
+
+	/**
+	 * Pass objects back and forth between the current thread and a new
+	 * thread.
+	 * 
+	 * @return the number of bytes allocated during the round trips, or -1 if
+	 *         that cannot be measured, and the real time they took in
+	 *         nanoseconds.
+	 */
+	private static long[] pingPong(int rounds) {
 		SynchList<Integer> ping = new SynchList<Integer>();
 		SynchList<Integer> pong = new SynchList<Integer>();
 
-		new KThread(new PingTest(ping, pong)).setName("ping").fork();
+		PingTest test = new PingTest(ping, pong, rounds);
+		KThread thread = new KThread(test).setName("ping");
+		thread.fork();
 
-		for (int i = 0; i < 10; i++) {
-			Integer o = i;
+		long bytes = threadAllocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			// small enough to come from the Integer cache
+			Integer o = i % 100;
 			ping.add(o);
 			Lib.assertTrue(pong.removeFirst() == o);
 		}
+		long elapsed = System.nanoTime() - start;
+		if (bytes >= 0)
+			bytes = threadAllocatedBytes() - bytes;
+
+		thread.join();
+		if (test.allocated < 0)
+			bytes = -1;
+		else if (bytes >= 0)
+			bytes += test.allocated;
+
+		return new long[] { bytes, elapsed };
+	}
+
+	/**
+	 * Return the number of bytes allocated so far by the current Java thread,
+	 * or -1 if that cannot be measured. The threads of a Nachos running on
+	 * virtual threads are not counted by the JVM, so the result is -1 then.
+	 */
+	private static long threadAllocatedBytes() {
+		if (TCB.usesVirtualThreads()
+				|| !(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+			return -1;
+
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		if (!bean.isThreadAllocatedMemoryEnabled())
+			return -1;
+
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
 	}
 
 	private LinkedList<T> list;
@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple threads.
@@ -84,7 +86,10 @@ public abstract class ThreadQueue {
 	 * 
 	 * <p>
 	 * This method should not be called for a thread returned from
-	 * <tt>nextThread()</tt>.
+	 * <tt>nextThread()</tt>. It may be called while other threads are waiting,
+	 * if the resource lets a thread take it ahead of them (for example, a lock
+	 * that allows barging); the thread then replaces the previous holder, and
+	 * the waiting threads donate priority to it instead.
 	 * 
 	 * @param thread
 	 *            the thread that has received access, but was not returned from
@@ -92,6 +97,35 @@ public abstract class ThreadQueue {
 	 */
 	public abstract void acquire(KThread thread);
 
+	/**
+	 * Stop the specified thread from waiting for access, for example because
+	 * it gave up waiting after a timeout. The thread will not be returned by
+	 * <tt>nextThread()</tt>, and no longer donates priority through this
+	 * queue.
+	 * 
+	 * @param thread
+	 *            the thread that no longer waits for access.
+	 * @return <tt>true</tt> if the thread was waiting on this queue.
+	 */
+	public abstract boolean remove(KThread thread);
+
+	/**
+	 * Move every thread waiting on this queue to wait on the specified queue
+	 * instead, as if each were returned by <tt>nextThread()</tt> and passed to
+	 * <tt>waitForAccess()</tt> on the other queue. Subclasses may move the
+	 * threads all at once if both queues are of the same kind.
+	 * 
+	 * @param queue
+	 *            the queue the threads will wait on.
+	 */
+	public void transferTo(ThreadQueue queue) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		KThread thread;
+		while ((thread = nextThread()) != null)
+			queue.waitForAccess(thread);
+	}
+
 	/**
 	 * Print out all the threads waiting for access, in no particular order.
 	 */
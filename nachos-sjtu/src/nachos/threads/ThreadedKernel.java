@@ -34,7 +34,12 @@ public class ThreadedKernel extends Kernel {
 		// start threading
 		new KThread(null);
 
-		alarm = new Alarm();
+		// set alarm
+		String alarmName = Config.getString("ThreadedKernel.alarm");
+		if (alarmName != null)
+			alarm = (Alarm) Lib.constructObject(alarmName);
+		else
+			alarm = new Alarm();
 
 		Machine.interrupt().enable();
 	}
@@ -43,13 +48,45 @@ public class ThreadedKernel extends Kernel {
 	 * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
 	 * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
 	 * autograder never calls this method, so it is safe to put additional tests
-	 * here.
+	 * here. If <tt>ThreadedKernel.benchmarks</tt> is true, also run
+	 * <tt>benchmark()</tt>.
 	 */
 	public void selfTest() {
 		KThread.selfTest();
 		Semaphore.selfTest();
+		Alarm.selfTest();
+		Lock.selfTest();
+		ReadWriteLock.selfTest();
+		Communicator.selfTest();
+		Condition2.selfTest();
+		PriorityScheduler.selfTest();
+		StrideScheduler.selfTest();
+		FairScheduler.selfTest();
 		SynchList.selfTest();
+		BoundedSynchList.selfTest();
 		Boat.selfTest();
+
+		if (Config.getBoolean("ThreadedKernel.benchmarks", false))
+			benchmark();
+	}
+
+	/**
+	 * Measure the performance of the thread system, and print the real or
+	 * simulated time each measurement takes. These times differ from run to
+	 * run, so this is kept out of the default self-test.
+	 */
+	public void benchmark() {
+		Interrupt.benchmark();
+		KThread.benchmark();
+		Lock.benchmark();
+		ReadWriteLock.benchmark();
+		PriorityScheduler.benchmark();
+		StrideScheduler.benchmark();
+		FairScheduler.benchmark();
+		Communicator.benchmark();
+		Condition2.benchmark();
+		SynchList.benchmark();
+		BoundedSynchList.benchmark();
 	}
 
 	/**
@@ -0,0 +1,177 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * An alarm that keeps pending timeouts in a hierarchical timing wheel.
+ *
+ * <p>
+ * The wheel has <tt>numLevels</tt> levels of <tt>slotsPerLevel</tt> slots. A
+ * slot at level <i>k</i> covers <tt>slotsPerLevel</tt><sup><i>k</i></sup>
+ * ticks, and each slot holds a doubly-linked list of timeouts, so a timeout is
+ * set or canceled in constant time. A timeout is placed at the lowest level
+ * whose slots can tell its time apart from the current time. When the current
+ * time reaches a slot at a higher level, the slot is emptied and its timeouts
+ * move down to lower levels; when it reaches a slot at level 0, all of the
+ * timeouts in that slot run at once.
+ *
+ * <p>
+ * Each level keeps a bitmap of its non-empty slots, so the next slot to
+ * process is found without stepping through empty ones, however far the
+ * current time jumps.
+ *
+ * <p>
+ * The list links are kept in the timeouts themselves, and the timeout that
+ * wakes a thread from <tt>waitUntil()</tt> is reused every time the thread
+ * sleeps, so sleeping allocates nothing.
+ */
+public class TimerWheelAlarm extends Alarm {
+	/**
+	 * Allocate a new timing wheel alarm.
+	 */
+	public TimerWheelAlarm() {
+		super();
+
+		current = Machine.timer().getTime();
+	}
+
+	@Override
+	protected void add(Timeout timeout) {
+		Lib.assertTrue(timeout.slot < 0);
+		insert(timeout);
+	}
+
+	@Override
+	protected void remove(Timeout timeout) {
+		unlink(timeout);
+	}
+
+	@Override
+	protected void expire(long time) {
+		while (true) {
+			int level = 0;
+			while (level < numLevels && pendingSlots(level) == 0)
+				level++;
+			if (level == numLevels)
+				break;
+
+			int index = Long.numberOfTrailingZeros(pendingSlots(level));
+			long slotStart = slotStart(level, index);
+			if (slotStart > time)
+				break;
+
+			/*
+			 * Empty the slot one timeout at a time, since a handler may cancel
+			 * another timeout in the same slot, or set a new one that is
+			 * already due.
+			 */
+			current = slotStart;
+			int slot = level * slotsPerLevel + index;
+			Timeout timeout;
+			while ((timeout = slots[slot]) != null) {
+				unlink(timeout);
+				if (level == 0)
+					fire(timeout);
+				else
+					insert(timeout);
+			}
+		}
+
+		current = Math.max(current, time);
+	}
+
+	/**
+	 * The start of the first occupied slot is the earliest time at which a
+	 * timeout can be due. If the slot is above level 0 this may be too early,
+	 * but an interrupt then moves the slot down, so the next call is exact.
+	 */
+	@Override
+	protected long nextTime() {
+		for (int level = 0; level < numLevels; level++) {
+			long pending = pendingSlots(level);
+			if (pending != 0)
+				return slotStart(level,
+						Long.numberOfTrailingZeros(pending));
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Return the time at which the specified slot starts, in the current turn
+	 * of its level.
+	 */
+	private long slotStart(int level, int index) {
+		int shift = level * bitsPerLevel;
+		long mask = ((long) slotsPerLevel << shift) - 1;
+		return (current & ~mask) | ((long) index << shift);
+	}
+
+	/**
+	 * Return the bitmap of the slots at the specified level that may still
+	 * hold timeouts. Slots before the current time at level 0 are always
+	 * empty, and so are slots at or before the current time at higher levels.
+	 */
+	private long pendingSlots(int level) {
+		int index = (int) (current >>> (level * bitsPerLevel)) & slotMask;
+		if (level > 0)
+			index++;
+		if (index == slotsPerLevel)
+			return 0;
+
+		return occupied[level] & (-1L << index);
+	}
+
+	/**
+	 * Put a timeout in the slot for its time, relative to the current time.
+	 */
+	private void insert(Timeout timeout) {
+		long time = Math.max(timeout.time, current);
+		long diff = time ^ current;
+		int level = diff == 0 ? 0 : (63 - Long.numberOfLeadingZeros(diff))
+				/ bitsPerLevel;
+		int index = (int) (time >>> (level * bitsPerLevel)) & slotMask;
+		int slot = level * slotsPerLevel + index;
+
+		timeout.slot = slot;
+		timeout.prev = null;
+		timeout.next = slots[slot];
+		if (slots[slot] != null)
+			slots[slot].prev = timeout;
+		slots[slot] = timeout;
+		occupied[level] |= 1L << index;
+	}
+
+	/**
+	 * Remove a timeout from its slot.
+	 */
+	private void unlink(Timeout timeout) {
+		int slot = timeout.slot;
+		Lib.assertTrue(slot >= 0);
+
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			slots[slot] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		if (slots[slot] == null)
+			occupied[slot / slotsPerLevel] &= ~(1L << (slot % slotsPerLevel));
+
+		timeout.prev = timeout.next = null;
+		timeout.slot = -1;
+	}
+
+	private static final int bitsPerLevel = 6;
+	private static final int slotsPerLevel = 1 << bitsPerLevel;
+	private static final int slotMask = slotsPerLevel - 1;
+	/** Enough levels to cover every non-negative <tt>long</tt> time. */
+	private static final int numLevels = (63 + bitsPerLevel - 1) / bitsPerLevel;
+
+	/** The heads of the timeout lists, level by level. */
+	private Timeout[] slots = new Timeout[numLevels * slotsPerLevel];
+	/** For each level, a bitmap of its non-empty slots. */
+	private long[] occupied = new long[numLevels];
+	/** The time up to which the wheel has been processed. */
+	private long current;
+}
@@ -196,6 +196,10 @@ public class UserProcess {
 		int amount = Math.min(length, memory.length - vaddr);
 		System.arraycopy(data, offset, memory, vaddr, amount);
 
+		int end = vaddr + amount;
+		for (int page = vaddr / pageSize; page * pageSize < end; page++)
+			Machine.processor().invalidateCode(page);
+
 		return amount;
 	}
 
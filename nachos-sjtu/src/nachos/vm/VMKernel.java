@@ -1,5 +1,9 @@
 package nachos.vm;
 
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.Processor;
+import nachos.machine.TranslationEntry;
 import nachos.userprog.UserKernel;
 
 /**
@@ -41,5 +45,45 @@ public class VMKernel extends UserKernel {
 		super.terminate();
 	}
 
+	/**
+	 * Allocate an address-space identifier of the current generation. ASIDs
+	 * are handed out in order, and are not freed when a process exits. Once
+	 * they run out, a new generation starts: every non-global TLB entry is
+	 * invalidated, and all ASIDs except 0, which is left for global entries,
+	 * can be handed out again. A process keeps its ASID until the generation
+	 * changes, so switching between processes does not flush the TLB.
+	 * 
+	 * <p>
+	 * Interrupts must be disabled, so that the ASID is tagged on TLB entries
+	 * before the generation can change.
+	 * 
+	 * @return the new ASID, which belongs to generation
+	 *         <tt>asidGeneration</tt>.
+	 */
+	static int allocateASID() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Processor processor = Machine.processor();
+		if (nextASID == processor.getNumASIDs()) {
+			Lib.debug(dbgVM, "ASID generation " + asidGeneration + " ended");
+
+			for (int i = 0; i < processor.getTLBSize(); i++) {
+				TranslationEntry entry = processor.readTLBEntry(i);
+				if (entry.valid && !entry.global) {
+					entry.valid = false;
+					processor.writeTLBEntry(i, entry);
+				}
+			}
+			asidGeneration++;
+			nextASID = 1;
+		}
+
+		return nextASID++;
+	}
+
+	/** The generation the ASIDs handed out since the last flush belong to. */
+	static long asidGeneration = 1;
+	private static int nextASID = 1;
+
 	private static final char dbgVM = 'v';
 }
@@ -2,6 +2,7 @@ package nachos.vm;
 
 import nachos.machine.Machine;
 import nachos.machine.Processor;
+import nachos.machine.TranslationEntry;
 import nachos.userprog.UserProcess;
 
 /**
@@ -17,7 +18,8 @@ public class VMProcess extends UserProcess {
 
 	/**
 	 * Save the state of this process in preparation for a context switch.
-	 * Called by <tt>UThread.saveState()</tt>.
+	 * Called by <tt>UThread.saveState()</tt>. The TLB entries of this process
+	 * are tagged with its ASID, so they are left in the TLB.
 	 */
 	public void saveState() {
 		super.saveState();
@@ -25,10 +27,19 @@ public class VMProcess extends UserProcess {
 
 	/**
 	 * Restore the state of this process after a context switch. Called by
-	 * <tt>UThread.restoreState()</tt>.
+	 * <tt>UThread.restoreState()</tt>. Makes the ASID of this process current,
+	 * first allocating a new one if its generation has ended.
 	 */
 	public void restoreState() {
-		super.restoreState();
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (asidGeneration != VMKernel.asidGeneration) {
+			asid = VMKernel.allocateASID();
+			asidGeneration = VMKernel.asidGeneration;
+		}
+		Machine.processor().setASID(asid);
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -60,12 +71,44 @@ public class VMProcess extends UserProcess {
 		Processor processor = Machine.processor();
 
 		switch (cause) {
+		case Processor.exceptionTLBMiss:
+			handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+			break;
+
 		default:
 			super.handleException(cause);
 			break;
 		}
 	}
 
+	/**
+	 * Load the page table entry for the specified virtual address into the
+	 * TLB, tagged with the ASID of this process.
+	 * 
+	 * @param vaddr
+	 *            the virtual address that missed in the TLB.
+	 */
+	private void handleTLBMiss(int vaddr) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (vpn >= pageTable.length || !pageTable[vpn].valid) {
+			super.handleException(Processor.exceptionTLBMiss);
+			return;
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		TranslationEntry entry = new TranslationEntry(pageTable[vpn]);
+		entry.asid = asid;
+		Machine.processor().replaceTLBEntry(entry);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/** The ASID of this process, valid while its generation is current. */
+	private int asid;
+	/** The ASID generation <tt>asid</tt> belongs to, or 0 if none yet. */
+	private long asidGeneration = 0;
+
 	private static final int pageSize = Processor.pageSize;
 	private static final char dbgProcess = 'a';
 	private static final char dbgVM = 'v';